@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Finds the band size and thread count FilterScheduler should use for each filter on
+ * this machine. The best values depend on the filter, the image size and the host (cores,
+ * cache sizes), so rather than hardcoding them each installed filter is timed on random
+ * rasters of three size classes with every combination of a few band sizes and thread
+ * counts, and the fastest combination is kept.
+ *
+ * The result is a profile saved as a properties file, by default in the user's home
+ * directory, and loaded by FilterScheduler the first time it runs a filter. A profile
+ * made on a host with a different number of processors is ignored. A pass that fuses
+ * several filters uses the setting of the one that took longest on its own.
+ *
+ * The programs that transform images take a --tuning option, handled by configure():
+ *   profile     use the saved profile if there is one (the default)
+ *   calibrate   calibrate now, save the profile and use it
+ *   off         ignore any profile: 256 KB bands on every processor
+ *   FILE        use the profile saved in FILE
+ *
+ * Usage: java AutoTuner [--quick] [profile.properties]
+ *   --quick     only calibrate small images, in a second or so
+ */
+public class AutoTuner {
+    public static final Path DEFAULT_PROFILE = Paths.get(System.getProperty("user.home"),
+            ".imagemanipulator-tuning.properties");
+
+    //Candidates tried for every filter and size class
+    private static final int[] BAND_BYTES = {16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20};
+    //Timed runs of each candidate, keeping the fastest, after one run to warm up
+    private static final int RUNS = 3;
+
+    /**
+     * Images are tuned by size: each class is calibrated on a random raster of its typical size
+     */
+    public enum SizeClass {
+        SMALL(512, 512), MEDIUM(1280, 1024), LARGE(2560, 1920);
+
+        private final int width, height;
+
+        SizeClass(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return the class of an image with this many pixels
+         */
+        public static SizeClass of(long pixels) {
+            if (pixels <= 2L * SMALL.width * SMALL.height)
+                return SMALL;
+            if (pixels <= 2L * MEDIUM.width * MEDIUM.height)
+                return MEDIUM;
+            return LARGE;
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * How to run one pass: the bytes in each band of rows, and how many threads work on the bands
+     */
+    public static class Setting {
+        public static final Setting DEFAULT = new Setting(256 << 10, Runtime.getRuntime().availableProcessors());
+
+        private final int bandBytes, threads;
+
+        public Setting(int bandBytes, int threads) {
+            this.bandBytes = bandBytes;
+            this.threads = threads;
+        }
+
+        public int getBandBytes() {
+            return bandBytes;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Setting && ((Setting) other).bandBytes == bandBytes
+                    && ((Setting) other).threads == threads;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * bandBytes + threads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d KB bands on %d threads", bandBytes >> 10, threads);
+        }
+    }
+
+    /**
+     * The settings chosen for each filter and size class
+     */
+    public static class Profile {
+        private final Properties properties;
+        //Parsed from the properties, by filter.sizeClass
+        private final Map<String, Setting> settings = new HashMap<>();
+        private final Map<String, Double> millis = new HashMap<>();
+
+        /**
+         * @throws IllegalArgumentException If a band size or thread count is missing or not
+         *         a positive number, or a time is not a number
+         */
+        private Profile(Properties properties) {
+            this.properties = properties;
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.endsWith(".bandBytes") && !name.endsWith(".threads"))
+                    continue;
+                String key = name.substring(0, name.lastIndexOf('.'));
+                settings.put(key, new Setting(positive(key + ".bandBytes"), positive(key + ".threads")));
+                String time = properties.getProperty(key + ".millis");
+                if (time != null) {
+                    try {
+                        millis.put(key, Double.parseDouble(time));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(key + ".millis is not a number: " + time);
+                    }
+                }
+            }
+        }
+
+        private int positive(String name) {
+            String value = properties.getProperty(name);
+            try {
+                int number = Integer.parseInt(value == null ? "" : value.trim());
+                if (number > 0)
+                    return number;
+            } catch (NumberFormatException e) {
+                //Reported below
+            }
+            throw new IllegalArgumentException(name + " should be a positive whole number, not " + value);
+        }
+
+        /**
+         * @return the setting for a filter on an image of this many pixels, or null if
+         *         the filter was not calibrated
+         */
+        public Setting settingFor(String filter, long pixels) {
+            return settings.get(filter + "." + SizeClass.of(pixels).key());
+        }
+
+        /**
+         * The setting for a pass of several fused filters. Only single filters are
+         * calibrated, so this is the setting of the one that took longest on its own:
+         * the pass costs about what its most expensive filter does.
+         *
+         * @return the setting, or null if none of the filters was calibrated
+         */
+        public Setting settingFor(List<RasterFilter> pass, long pixels) {
+            Setting best = null;
+            double bestMillis = -1;
+            for (RasterFilter filter : pass) {
+                String key = filter.getName() + "." + SizeClass.of(pixels).key();
+                Setting setting = settings.get(key);
+                double time = millis.getOrDefault(key, 0.0);
+                if (setting != null && time > bestMillis) {
+                    best = setting;
+                    bestMillis = time;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Load a saved profile
+         *
+         * @return the profile, or null if it was made on a host with a different number of processors
+         * @throws IOException If the file cannot be read, e.g. NoSuchFileException, or holds
+         *         a setting that is not a positive number
+         */
+        public static Profile load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            String processors = properties.getProperty("processors");
+            if (!Integer.toString(Runtime.getRuntime().availableProcessors()).equals(processors)) {
+                System.err.printf("Ignoring tuning profile %s: made for %s processors, this host has %d%n",
+                        file, processors, Runtime.getRuntime().availableProcessors());
+                return null;
+            }
+            try {
+                return new Profile(properties);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad tuning profile " + file + ": " + e.getMessage(), e);
+            }
+        }
+
+        public void save(Path file) throws IOException {
+            Spool.writeProperties(file, properties);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Collection<SizeClass> classes = Arrays.asList(SizeClass.values());
+        Path file = DEFAULT_PROFILE;
+        for (String arg : args) {
+            if (arg.equals("--quick"))
+                classes = List.of(SizeClass.SMALL);
+            else
+                file = Paths.get(arg);
+        }
+        Profile profile = calibrate(FilterScheduler.installed(), classes, true);
+        profile.save(file);
+        System.out.println("Saved " + file);
+    }
+
+    /**
+     * Apply a --tuning option to FilterScheduler
+     *
+     * @param mode profile, calibrate, off, or the name of a profile file
+     * @throws IOException If the profile file cannot be read or written
+     */
+    public static void configure(String mode) throws IOException {
+        switch (mode) {
+            case "profile":
+                FilterScheduler.setProfile(loadDefault());
+                break;
+            case "calibrate": {
+                Profile profile = calibrate(FilterScheduler.installed(), Arrays.asList(SizeClass.values()), false);
+                profile.save(DEFAULT_PROFILE);
+                FilterScheduler.setProfile(profile);
+                break;
+            }
+            case "off":
+                FilterScheduler.setProfile(null);
+                break;
+            default:
+                FilterScheduler.setProfile(Profile.load(Paths.get(mode)));
+        }
+    }
+
+    /**
+     * @return the profile in DEFAULT_PROFILE, or null if there is none for this host
+     */
+    static Profile loadDefault() {
+        try {
+            return Profile.load(DEFAULT_PROFILE);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring tuning profile " + DEFAULT_PROFILE + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Time every candidate setting for each filter and size class and keep the fastest
+     *
+     * @param verbose true to print each choice as it is made
+     * @return a profile for this host
+     */
+    public static Profile calibrate(List<RasterFilter> filters, Collection<SizeClass> classes, boolean verbose) {
+        Properties properties = new Properties();
+        properties.setProperty("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        properties.setProperty("created", Long.toString(System.currentTimeMillis()));
+        for (SizeClass size : classes) {
+            try (Raster source = randomRaster(size.width, size.height)) {
+                for (RasterFilter filter : filters) {
+                    Setting best = null;
+                    long bestNanos = Long.MAX_VALUE;
+                    for (Setting candidate : candidates(source)) {
+                        long nanos = time(source, filter, candidate);
+                        if (nanos < bestNanos) {
+                            best = candidate;
+                            bestNanos = nanos;
+                        }
+                    }
+                    String key = filter.getName() + "." + size.key();
+                    properties.setProperty(key + ".bandBytes", Integer.toString(best.getBandBytes()));
+                    properties.setProperty(key + ".threads", Integer.toString(best.getThreads()));
+                    properties.setProperty(key + ".millis", String.format(Locale.ROOT, "%.3f", bestNanos / 1e6));
+                    if (verbose)
+                        System.out.printf("%-10s %-6s %s, %.2f ms%n", filter.getName(), size.key(), best, bestNanos / 1e6);
+                }
+            }
+        }
+        return new Profile(properties);
+    }
+
+    /**
+     * @return band sizes up to the size of the image, on 1, 2, 4... up to every processor
+     */
+    private static List<Setting> candidates(Raster source) {
+        List<Setting> candidates = new ArrayList<>();
+        int imageBytes = Raster.byteSize(source.getWidth(), source.getHeight(), source.getChannels());
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int bandBytes : BAND_BYTES) {
+            for (int threads = 1; ; threads = Math.min(2 * threads, processors)) {
+                candidates.add(new Setting(bandBytes, threads));
+                if (threads == processors)
+                    break;
+            }
+            if (bandBytes >= imageBytes)
+                break;
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the fastest of a few runs, in nanoseconds
+     */
+    private static long time(Raster source, RasterFilter filter, Setting setting) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            FilterScheduler.run(source, List.of(filter), setting).close();
+            if (run > 0)
+                best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * @return a color raster of random pixels, the same every time
+     */
+    private static Raster randomRaster(int width, int height) {
+        Raster raster = Raster.allocateForOverwrite(width, height);
+        ByteBuffer pixels = raster.buffer();
+        Random random = new Random(42);
+        byte[] row = new byte[raster.rowBytes()];
+        for (int y = 0; y < height; y++) {
+            random.nextBytes(row);
+            pixels.put(raster.index(0, y), row);
+        }
+        return raster;
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Applies a chain of modifications to every PPM (or PGM) file in a directory, without the GUI.
+ * Input files are read ahead asynchronously while the current one is being transformed.
+ * Gray results, e.g. after grayscale, are written as PGM files with a .pgm extension.
+ * With --compare, each result is also checked against the file of the same name in a
+ * directory of golden results, and the run fails if any of them differ.
+ *
+ * Usage: java BatchProcessor [options] inputDir outputDir op...
+ *   op          flip, invert, grayscale, pixelate or any other installed RasterFilter,
+ *               applied left to right
+ *   --depth N   number of files to read ahead (default 4)
+ *   --memory M  megabytes of read-ahead buffers to hold at most (default 256)
+ *   --binary    write P6 (P5) instead of P3 (P2)
+ *   --compare D compare each result with the one of the same name in directory D
+ *   --tuning T  profile, calibrate, off or a profile file; see AutoTuner
+ */
+public class BatchProcessor {
+
+    public static void main(String[] args) throws IOException {
+        int depth = 4;
+        long memoryCap = 256L << 20;
+        boolean binary = false;
+        Path goldenDir = null;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--depth": depth = Integer.parseInt(args[++i]); break;
+                case "--memory": memoryCap = Long.parseLong(args[++i]) << 20; break;
+                case "--binary": binary = true; break;
+                case "--compare": goldenDir = Paths.get(args[++i]); break;
+                case "--tuning": AutoTuner.configure(args[++i]); break;
+                default: positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2) {
+            System.err.println("Usage: java BatchProcessor [--depth N] [--memory MB] [--binary] [--compare goldenDir] [--tuning T] inputDir outputDir op...");
+            System.exit(2);
+        }
+
+        Path inputDir = Paths.get(positional.get(0)), outputDir = Paths.get(positional.get(1));
+        List<RasterFilter> ops = parseOps(positional.subList(2, positional.size()));
+        Files.createDirectories(outputDir);
+
+        List<Path> inputs = listImages(inputDir);
+        long start = System.nanoTime();
+        List<String> differing = new ArrayList<>();
+        int processed = process(inputs, outputDir, ops, binary, depth, memoryCap, goldenDir, differing);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d of %d images in %.2f s (%.1f images/s)%n", processed, inputs.size(), seconds,
+                processed / seconds);
+        if (goldenDir != null) {
+            System.out.printf("%d of %d results match %s%n", processed - differing.size(), processed, goldenDir);
+            if (!differing.isEmpty())
+                System.exit(1);
+        }
+    }
+
+    /**
+     * Load, transform and save each input, reading ahead of the one being transformed
+     *
+     * @param goldenDir directory of expected results to compare with, or null not to compare
+     * @param differing where to add the names of results that do not match their golden file
+     * @return number of images written
+     */
+    static int process(List<Path> inputs, Path outputDir, List<RasterFilter> ops, boolean binary,
+                       int depth, long memoryCap, Path goldenDir, List<String> differing) {
+        int processed = 0;
+        try (ReadAhead readAhead = new ReadAhead(inputs, depth, memoryCap)) {
+            while (readAhead.hasNext()) {
+                ReadAhead.Prefetched file;
+                try {
+                    file = readAhead.next();
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable file: " + e.getMessage());
+                    continue;
+                }
+                String output = outputDir.resolve(file.getPath().getFileName()).toString();
+                Raster source;
+                try {
+                    source = PpmReader.readStrict(file.getData(), file.getPath().toString(), PpmReader.Limits.DEFAULT);
+                } catch (IOException e) {
+                    System.err.println("Skipping " + e.getMessage());
+                    continue;
+                } finally {
+                    //The raster has its own copy, so the read-ahead buffer can be reused now
+                    readAhead.done(file);
+                }
+                try (Raster image = source; Raster result = transform(image, ops)) {
+                    String written = save(result, output, binary);
+                    processed++;
+                    if (goldenDir != null && !matchesGolden(result, goldenDir.resolve(Paths.get(written).getFileName())))
+                        differing.add(written);
+                } catch (IOException e) {
+                    System.err.println("Could not write " + output + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    //A filter that throws skips this file, not the rest of the batch
+                    System.err.println("Could not transform " + file.getPath() + ": " + e);
+                }
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * Apply the operations to a raster and save the result.
+     * A gray result going to a .ppm file is written to the matching .pgm file instead.
+     *
+     * @return the file written
+     */
+    static String transformAndSave(Raster source, List<RasterFilter> ops, String output, boolean binary)
+            throws IOException {
+        try (Raster result = transform(source, ops)) {
+            return save(result, output, binary);
+        }
+    }
+
+    /**
+     * @return a new raster with the operations applied, left to right
+     */
+    static Raster transform(Raster source, List<RasterFilter> ops) {
+        return FilterScheduler.run(source, ops);
+    }
+
+    /**
+     * Save a result, as a .pgm file instead of .ppm if it is gray
+     *
+     * @return the file written
+     */
+    static String save(Raster result, String output, boolean binary) throws IOException {
+        output = outputName(output, result.isGray());
+        if (binary)
+            PpmWriter.writeBinary(output, result);
+        else
+            PpmWriter.writePlain(output, result);
+        return output;
+    }
+
+    /**
+     * @return the file save() writes a result to: the matching .pgm file for a gray result going to a .ppm file
+     */
+    static String outputName(String output, boolean gray) {
+        if (gray && output.endsWith(".ppm"))
+            return output.substring(0, output.length() - ".ppm".length()) + ".pgm";
+        return output;
+    }
+
+    /**
+     * Compare a result with its golden file, printing how they differ if they do
+     *
+     * @return true if the golden file exists and has the same pixels
+     */
+    private static boolean matchesGolden(Raster result, Path golden) {
+        try (Raster expected = PpmReader.read(golden.toString())) {
+            if (RasterCompare.equal(result, expected))
+                return true;
+            if (result.getWidth() != expected.getWidth() || result.getHeight() != expected.getHeight()) {
+                System.out.printf("%s: %dx%d, expected %dx%d%n", golden.getFileName(), result.getWidth(),
+                        result.getHeight(), expected.getWidth(), expected.getHeight());
+                return false;
+            }
+            try (RasterCompare.Result difference = RasterCompare.compare(result, expected, false)) {
+                System.out.println(golden.getFileName() + ": " + difference);
+            }
+        } catch (IOException e) {
+            System.out.println(golden.getFileName() + ": no golden result (" + e.getMessage() + ")");
+        }
+        return false;
+    }
+
+    /**
+     * Turn operation names into filters, from the ones installed
+     *
+     * @throws IllegalArgumentException If a name is not recognised
+     */
+    static List<RasterFilter> parseOps(List<String> names) {
+        List<RasterFilter> ops = new ArrayList<>();
+        for (String name : names) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "gray": case "grayify": ops.add(FilterScheduler.named("grayscale")); break;
+                default: ops.add(FilterScheduler.named(name));
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * @return the .ppm and .pgm files in a directory, sorted by name
+     */
+    static List<Path> listImages(Path directory) throws IOException {
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.{ppm,pgm}")) {
+            for (Path path : stream)
+                images.add(path);
+        }
+        images.sort(null);
+        return images;
+    }
+}
@@ -0,0 +1,337 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Runs a chain of RasterFilters, deciding from what each filter declares about itself
+ * how the work is done:
+ * <ul>
+ * <li>fusion: a run of PER_PIXEL and GEOMETRIC filters is done in one pass, since a
+ *     per-pixel change gives the same pixels before or after moving them. Each result
+ *     pixel is read once from wherever the moves put it and every color change is
+ *     applied to it on the way. Moves that only shuffle rows are done as row copies.</li>
+ * <li>parallelism: every pass is cut into bands of rows, rounded to the filter's tile
+ *     alignment, and the bands are shared out between threads</li>
+ * <li>buffer reuse: a pass that can run in place writes over the result of the previous
+ *     pass instead of allocating; otherwise the previous result goes back to the
+ *     RasterPool for the next allocation to pick up</li>
+ * </ul>
+ *
+ * How big the bands are and how many threads share them is looked up per pass and
+ * image size in the AutoTuner profile, if there is one for this host.
+ *
+ * Filters installed with ServiceLoader or install() are found with installed() and named().
+ */
+public class FilterScheduler {
+    private static volatile List<RasterFilter> installed;
+
+    private static volatile AutoTuner.Profile profile;
+    private static volatile boolean profileLoaded = false;
+
+    /**
+     * @return every filter listed in a META-INF/services/RasterFilter file on the class path
+     */
+    public static List<RasterFilter> installed() {
+        if (installed == null) {
+            synchronized (FilterScheduler.class) {
+                if (installed == null) {
+                    List<RasterFilter> filters = new ArrayList<>();
+                    for (RasterFilter filter : ServiceLoader.load(RasterFilter.class, RasterFilter.class.getClassLoader()))
+                        filters.add(filter);
+                    installed = Collections.unmodifiableList(filters);
+                }
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Install a filter that is not listed in a services file, e.g. one the program builds
+     * itself. From then on named() finds it like the others; an installed filter with the
+     * same name is replaced.
+     */
+    public static synchronized void install(RasterFilter filter) {
+        List<RasterFilter> filters = new ArrayList<>(installed());
+        filters.removeIf(other -> other.getName().equalsIgnoreCase(filter.getName()));
+        filters.add(filter);
+        installed = Collections.unmodifiableList(filters);
+    }
+
+    /**
+     * Remove an installed filter, e.g. one added with install() that is no longer wanted
+     *
+     * @return true if a filter with that name was installed
+     */
+    public static synchronized boolean uninstall(String name) {
+        List<RasterFilter> filters = new ArrayList<>(installed());
+        boolean removed = filters.removeIf(filter -> filter.getName().equalsIgnoreCase(name));
+        installed = Collections.unmodifiableList(filters);
+        return removed;
+    }
+
+    /**
+     * @return the installed filter with this name, ignoring case
+     * @throws IllegalArgumentException If no filter has that name
+     */
+    public static RasterFilter named(String name) {
+        for (RasterFilter filter : installed())
+            if (filter.getName().equalsIgnoreCase(name))
+                return filter;
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+
+    /**
+     * Use a tuning profile from now on, instead of the one in AutoTuner.DEFAULT_PROFILE
+     *
+     * @param tuned the profile, or null for the built-in settings
+     */
+    public static void setProfile(AutoTuner.Profile tuned) {
+        profile = tuned;
+        profileLoaded = true;
+    }
+
+    /**
+     * Apply filters to a raster, left to right
+     *
+     * @param source raster to read, not modified
+     * @param filters filters to apply; none gives a copy
+     * @return a new raster; the caller must close it
+     */
+    public static Raster run(Raster source, List<RasterFilter> filters) {
+        return run(source, filters, null);
+    }
+
+    /**
+     * @param setting band size and threads for every pass, or null to look them up in the profile
+     * @see #run(Raster, List)
+     */
+    static Raster run(Raster source, List<RasterFilter> filters, AutoTuner.Setting setting) {
+        Raster current = source;
+        for (List<RasterFilter> stage : plan(filters)) {
+            int channels = current.getChannels();
+            for (RasterFilter filter : stage)
+                channels = filter.getResultChannels(channels);
+            Raster next;
+            if (current != source && channels == current.getChannels() && isInPlace(stage)) {
+                next = current;
+            } else {
+                next = Raster.allocateLikeForOverwrite(current, current.getWidth(), current.getHeight(), channels);
+            }
+            runStage(stage, current, next, setting != null ? setting : settingFor(stage, current));
+            if (current != source && current != next)
+                current.close();
+            current = next;
+        }
+        if (current == source) {
+            //No filters at all: the caller still gets a raster of its own
+            current = Raster.allocateLikeForOverwrite(source, source.getWidth(), source.getHeight(), source.getChannels());
+            runStage(List.of(), source, current, setting != null ? setting : AutoTuner.Setting.DEFAULT);
+        }
+        return current;
+    }
+
+    /**
+     * Apply one filter to a rectangle of a raster in place, with the same result as cutting
+     * the rectangle out, filtering it as a whole image and pasting it back. A filter that
+     * makes color rasters gray leaves the rectangle color, with equal red, green and blue.
+     *
+     * @throws IllegalArgumentException If the rectangle is not inside the image
+     * @throws java.nio.ReadOnlyBufferException If the raster is mapped from a file
+     */
+    public static void runRegion(RasterFilter filter, Raster image, int x, int y, int width, int height) {
+        RasterOps.checkRegion(image, x, y, width, height);
+        try (Raster region = Raster.allocateLikeForOverwrite(image, width, height, image.getChannels())) {
+            ByteBuffer pixels = image.buffer(), cut = region.buffer();
+            for (int row = 0; row < height; row++)
+                cut.put(region.index(0, row), pixels, image.index(x, y + row), region.rowBytes());
+            try (Raster result = run(region, List.of(filter))) {
+                paste(result, image, x, y);
+            }
+        }
+    }
+
+    /**
+     * Copy a raster into another with its top left corner at (x, y). Gray samples are
+     * repeated into red, green and blue if only the target has color; a color pixel
+     * pasted into a gray target becomes its intensity, unless it is already gray.
+     */
+    private static void paste(Raster source, Raster target, int x, int y) {
+        ByteBuffer in = source.buffer(), out = target.buffer();
+        int inStep = source.getChannels(), outStep = target.getChannels();
+        for (int row = 0; row < source.getHeight(); row++) {
+            if (inStep == outStep) {
+                out.put(target.index(x, y + row), in, source.index(0, row), source.rowBytes());
+                continue;
+            }
+            for (int column = 0; column < source.getWidth(); column++) {
+                int i = source.index(column, row), o = target.index(x + column, y + row);
+                if (outStep > 1) {
+                    for (int c = 0; c < outStep; c++)
+                        out.put(o + c, in.get(i));
+                    continue;
+                }
+                int red = in.get(i) & 0xFF, green = in.get(i + 1) & 0xFF, blue = in.get(i + 2) & 0xFF;
+                out.put(o, (byte) (red == green && red == blue ? red : GrayscaleFilter.intensity(red, green, blue)));
+            }
+        }
+    }
+
+    /**
+     * Group filters into passes over the pixels: each NEIGHBORHOOD filter on its own,
+     * and each run of PER_PIXEL and GEOMETRIC filters together
+     *
+     * @return the passes, in order
+     */
+    static List<List<RasterFilter>> plan(List<RasterFilter> filters) {
+        List<List<RasterFilter>> stages = new ArrayList<>();
+        List<RasterFilter> fused = null;
+        for (RasterFilter filter : filters) {
+            if (filter.getKind() == RasterFilter.Kind.NEIGHBORHOOD) {
+                stages.add(List.of(filter));
+                fused = null;
+            } else if (fused == null) {
+                fused = new ArrayList<>();
+                fused.add(filter);
+                stages.add(fused);
+            } else {
+                fused.add(filter);
+            }
+        }
+        return stages;
+    }
+
+    private static boolean isInPlace(List<RasterFilter> stage) {
+        for (RasterFilter filter : stage)
+            if (!filter.isInPlace())
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the tuned setting for a pass, or the built-in one
+     */
+    private static AutoTuner.Setting settingFor(List<RasterFilter> stage, Raster source) {
+        if (!profileLoaded)
+            setProfile(AutoTuner.loadDefault());
+        AutoTuner.Profile tuned = profile;
+        AutoTuner.Setting setting = tuned == null ? null
+                : tuned.settingFor(stage, (long) source.getWidth() * source.getHeight());
+        return setting != null ? setting : AutoTuner.Setting.DEFAULT;
+    }
+
+    /**
+     * Do one pass, in bands of rows shared by the setting's number of threads
+     */
+    private static void runStage(List<RasterFilter> stage, Raster source, Raster result, AutoTuner.Setting setting) {
+        RasterFilter neighborhood = stage.size() == 1 && stage.get(0).getKind() == RasterFilter.Kind.NEIGHBORHOOD
+                ? stage.get(0) : null;
+        int alignment = neighborhood == null ? 1 : neighborhood.getTileAlignment();
+        int width = source.getWidth(), height = source.getHeight();
+        int rows = alignment == 0 ? height
+                : bandRows(Math.max(source.rowBytes(), result.rowBytes()), alignment, setting.getBandBytes());
+        int bands = (height + rows - 1) / rows;
+
+        forEachBand(bands, setting.getThreads(), band -> {
+            int top = band * rows, bottom = Math.min(top + rows, height);
+            if (neighborhood != null)
+                neighborhood.filterTile(source, result, 0, top, width, bottom - top);
+            else
+                fusedBand(stage, source, result, top, bottom);
+        });
+    }
+
+    /**
+     * Run body for every band, on the calling thread and up to threads - 1 helpers
+     * from the common fork/join pool, each taking the next band not yet started
+     */
+    private static void forEachBand(int bands, int threads, IntConsumer body) {
+        int helpers = Math.min(threads, bands) - 1;
+        AtomicInteger next = new AtomicInteger();
+        Runnable drain = () -> {
+            for (int band = next.getAndIncrement(); band < bands; band = next.getAndIncrement())
+                body.accept(band);
+        };
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < helpers; i++)
+            tasks.add(ForkJoinPool.commonPool().submit(drain));
+        drain.run();
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    /**
+     * Apply a run of PER_PIXEL and GEOMETRIC filters to rows top to bottom of the result
+     */
+    private static void fusedBand(List<RasterFilter> stage, Raster source, Raster result, int top, int bottom) {
+        List<RasterFilter> moves = new ArrayList<>(), colors = new ArrayList<>();
+        boolean wholeRows = true;
+        for (RasterFilter filter : stage) {
+            if (filter.getKind() == RasterFilter.Kind.GEOMETRIC) {
+                moves.add(filter);
+                wholeRows &= filter.movesWholeRows();
+            } else {
+                colors.add(filter);
+            }
+        }
+        //The last move decides where to look first, so the moves are followed backwards
+        Collections.reverse(moves);
+
+        ByteBuffer in = source.buffer(), out = result.buffer();
+        int width = source.getWidth(), height = source.getHeight();
+        int inStep = source.getChannels(), outStep = result.getChannels();
+        for (int y = top; y < bottom; y++) {
+            int row = y;
+            if (wholeRows)
+                for (RasterFilter move : moves)
+                    row = move.sourceRow(0, row, width, height);
+            if (wholeRows && colors.isEmpty() && inStep == outStep) {
+                out.put(result.index(0, y), in, source.index(0, row), source.rowBytes());
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int i;
+                if (wholeRows) {
+                    i = source.index(x, row);
+                } else {
+                    int column = x, sourceRow = y;
+                    for (RasterFilter move : moves) {
+                        int nextColumn = move.sourceColumn(column, sourceRow, width, height);
+                        sourceRow = move.sourceRow(column, sourceRow, width, height);
+                        column = nextColumn;
+                    }
+                    i = source.index(column, sourceRow);
+                }
+                int rgb = (in.get(i) & 0xFF) * 0x010101;
+                if (inStep > 1)
+                    rgb = (rgb & 0xFF0000) | (in.get(i + 1) & 0xFF) << 8 | (in.get(i + 2) & 0xFF);
+                for (RasterFilter color : colors)
+                    rgb = color.filterPixel(rgb);
+                int o = result.index(x, y);
+                if (outStep > 1) {
+                    out.put(o, (byte) (rgb >>> 16));
+                    out.put(o + 1, (byte) (rgb >>> 8));
+                    out.put(o + 2, (byte) rgb);
+                } else {
+                    out.put(o, (byte) rgb);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return rows per band: about bandBytes worth, and a multiple of the alignment
+     */
+    private static int bandRows(int rowBytes, int alignment, int bandBytes) {
+        int rows = Math.max(1, bandBytes / Math.max(1, rowBytes));
+        return (rows + alignment - 1) / alignment * alignment;
+    }
+}
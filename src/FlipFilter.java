@@ -0,0 +1,34 @@
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Vertical flip as a plug-in filter. The reference GEOMETRIC filter: it only
+ * moves whole rows, so the scheduler copies them without looking at the pixels.
+ */
+public class FlipFilter implements RasterFilter {
+
+    @Override
+    public String getName() {
+        return "flip";
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.GEOMETRIC;
+    }
+
+    @Override
+    public int sourceColumn(int x, int y, int width, int height) {
+        return x;
+    }
+
+    @Override
+    public int sourceRow(int x, int y, int width, int height) {
+        return height - 1 - y;
+    }
+
+    @Override
+    public boolean movesWholeRows() {
+        return true;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Grayscale as a plug-in filter: intensity = 0.2989*red + 0.5870*green + 0.1140*blue.
+ * A PER_PIXEL filter whose result is always a gray raster.
+ */
+public class GrayscaleFilter implements RasterFilter {
+
+    @Override
+    public String getName() {
+        return "grayscale";
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.PER_PIXEL;
+    }
+
+    @Override
+    public int getResultChannels(int sourceChannels) {
+        return Raster.GRAY_CHANNELS;
+    }
+
+    @Override
+    public int filterPixel(int rgb) {
+        return intensity(rgb >>> 16, (rgb >>> 8) & 0xFF, rgb & 0xFF) * 0x010101;
+    }
+
+    /**
+     * Gray level of a pixel. A gray pixel still comes out a level darker for most levels,
+     * as the weights add up to 0.9999.
+     */
+    static int intensity(int red, int green, int blue) {
+        return (int) (red * 0.2989 + green * 0.5870 + blue * 0.1140);
+    }
+}
@@ -1,38 +1,42 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Hyperlink;
 import javafx.scene.control.Label;
 import javafx.scene.control.Tooltip;
-import javafx.scene.image.ImageView;
 import javafx.scene.image.WritableImage;
-import javafx.scene.image.PixelWriter;
 import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
-import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextAlignment;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
-import java.util.Scanner;
-import java.util.InputMismatchException;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import java.awt.Desktop;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
 
 /**
  * @author Andrew Koman
@@ -52,9 +56,19 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
     private Stage primaryStage = null;
     private double width = 640,
                    height = 480;
+    //Image as loaded, and the edits made to it since, kept lazy so they can cancel out
+    private ImagePyramid loadedPyramid = null;
+    private LazyImage edits = null;
+    //Shows one byte gray rasters without expanding them to RGB first
+    private static final PixelFormat<ByteBuffer> GRAY_PALETTE = grayPalette();
+    //Installed filters that already have their own button
+    private static final List<String> BUILT_IN_FILTERS = Arrays.asList("flip", "invert", "grayscale", "pixelate");
     /**
      * Load the specified PPM image file.
-     * The image file must be in the PPM P3 format
+     * The image file must be in the PPM P3 or P6 format, or the PGM P2 or P5 format
+     * Malformed files show an error popup and return null, or when there is no GUI,
+     * throw an UncheckedIOException wrapping a PpmFormatException.
+     * Use PpmReader.readStrict directly to get the PpmFormatException itself.
      *
      * @param filename File name to be loaded
      * @return loaded WritableImage from filename
@@ -65,44 +79,28 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public WritableImage loadImage(String filename) throws FileNotFoundException {
-        File imageFile = new File(filename);
-        int width = -1, height = -1, colorSpace = -1;
-
-        Scanner imageScanner = new Scanner(imageFile);
-        if (!imageScanner.nextLine().equals("P3")) {
-            infoPopup(new String[] {"File Error", "File is corrupt", "or not a PPM"});
-            imageScanner.close();
-            return null;
+        try (Raster raster = loadRaster(filename)) {
+            return raster == null ? null : toImage(raster);
         }
-        while(width == -1 || height == -1 || colorSpace == -1) {
-            String next = imageScanner.nextLine();
-            if(next.charAt(0) == '#')
-                continue;
+    }
 
-            Scanner lineScanner = new Scanner(next);
-            if(width == -1 && height == -1) {
-                width = lineScanner.nextInt();
-                height = lineScanner.nextInt();
-            } else {
-                colorSpace = lineScanner.nextInt();
-            }
-        }
-//        System.out.printf("Width: %d\tHeight: %d\tColor Space: %d%n", width, height, colorSpace);
-        WritableImage image = new WritableImage(width,height);
+    /**
+     * Load an image file into a raster, gray for PGM files, handling errors like loadImage
+     *
+     * @return the raster, which the caller must close, or null if the error was shown in a popup
+     */
+    private Raster loadRaster(String filename) throws FileNotFoundException {
         try {
-            for(int i = 0; i < height; i++) {
-                for(int j = 0; j < width; j++) {
-                    int red = imageScanner.nextInt()*(255/colorSpace);
-                    int green = imageScanner.nextInt()*(255/colorSpace);
-                    int blue = imageScanner.nextInt()*(255/colorSpace);
-                    image.getPixelWriter().setColor(j,i,Color.rgb(red,green,blue));
-                }
-            }
-        } catch (InputMismatchException exception) {
-            imageScanner.nextLine();
+            return PpmReader.readStrict(filename, PpmReader.Limits.DEFAULT);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            //Without the GUI there is nowhere to show a popup, so hand the error to the caller
+            if (primaryStage == null)
+                throw new UncheckedIOException(e);
+            infoPopup(new String[] {"File Error", "File is corrupt", "or not a PPM"});
+            return null;
         }
-        imageScanner.close();
-        return image;
     }
 
     /**
@@ -118,28 +116,56 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public void saveImage(String filename, WritableImage image) throws FileNotFoundException {
-        File outFile = new File(filename);
-        int width = (int)image.getWidth(), height = (int)image.getHeight(), colorSpace = 255;
-        PrintWriter fileWriter = new PrintWriter( outFile );
-        fileWriter.println("P3");
-        fileWriter.println("# CREATOR: CS1122 ImageManipulator-inator");
-
-        fileWriter.printf("%d %d%n", width, height);
-        fileWriter.println(colorSpace);
-
-        PixelReader pixelReader = image.getPixelReader();
+        saveImage(filename, image, false);
+    }
 
-        for(int i = 0; i < height; i++) {
-            for(int j = 0; j < width; j++) {
-                Color pixelColor = pixelReader.getColor(j, i);
-                int r = (int)(pixelColor.getRed()*colorSpace);
-                int g = (int)(pixelColor.getGreen()*colorSpace);
-                int b = (int)(pixelColor.getBlue()*colorSpace);
+    /**
+     * Save the specified image to a PPM file, either plain (P3) or binary (P6).
+     * Binary files are a third of the size and are written straight from the raster bytes.
+     * A filename ending in .pgm saves a gray image as a PGM file instead (P2 or P5),
+     * with one sample per pixel.
+     *
+     * @param filename Name of image file to be saved
+     * @param image WritableImage to be saved
+     * @param binary true to write P6 (P5), false to write P3 (P2)
+     * @throws FileNotFoundException If filename cannot be created, then throw exception
+     * @throws IllegalArgumentException If saving to a .pgm file and the image is not all gray
+     */
+    public void saveImage(String filename, WritableImage image, boolean binary) throws FileNotFoundException {
+        try (Raster raster = toRaster(image)) {
+            saveRaster(filename, raster, binary);
+        }
+    }
 
-                fileWriter.printf("%d %d %d%n", r, g, b );
-            }
+    /**
+     * Save a raster like saveImage: as PGM if the filename ends in .pgm, otherwise as PPM,
+     * converting between gray and color as needed
+     */
+    static void saveRaster(String filename, Raster raster, boolean binary) throws FileNotFoundException {
+        boolean pgm = filename.toLowerCase(Locale.ROOT).endsWith(".pgm");
+        Raster converted = raster;
+        if (pgm && !raster.isGray()) {
+            converted = RasterOps.toGray(raster);
+            if (converted == null)
+                throw new IllegalArgumentException("Only a grayscale image can be saved as PGM: " + filename);
+        } else if (!pgm && raster.isGray()) {
+            converted = RasterOps.toRgb(raster);
+        }
+        try {
+            if (binary)
+                PpmWriter.writeBinary(filename, converted);
+            else
+                PpmWriter.writePlain(filename, converted);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (converted != raster)
+                converted.close();
         }
-        fileWriter.close();
     }
 
     /**
@@ -156,20 +182,9 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public WritableImage invertImage(WritableImage image) {
-        PixelReader pixelReader = image.getPixelReader();
-        WritableImage newImage = new WritableImage( (int)image.getWidth(), (int)image.getHeight() );
-        PixelWriter pixelWriter = newImage.getPixelWriter();
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color pixelColor = pixelReader.getColor(x, y);
-                int red = 255-(int)(pixelColor.getRed()*255);
-                int green = 255-(int)(pixelColor.getGreen()*255);
-                int blue = 255-(int)(pixelColor.getBlue()*255);
-                pixelWriter.setColor( x, y, Color.rgb( red, green, blue ) );
-            }
+        try (Raster source = toRaster(image); Raster result = RasterOps.invert(source)) {
+            return toImage(result);
         }
-        return newImage;
     }
 
     /**
@@ -188,20 +203,9 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public WritableImage grayifyImage(WritableImage image) {
-        PixelReader pixelReader = image.getPixelReader();
-        WritableImage newImage = new WritableImage( (int)image.getWidth(), (int)image.getHeight() );
-        PixelWriter pixelWriter = newImage.getPixelWriter();
-
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                Color pixelColor = pixelReader.getColor(x, y);
-                int pixelIntensity = (int)(255*(pixelColor.getRed() * 0.2989
-                                        + pixelColor.getGreen() * 0.5870
-                                        + pixelColor.getBlue() * 0.1140));
-                pixelWriter.setColor( x, y, Color.rgb(pixelIntensity, pixelIntensity, pixelIntensity) );
-            }
+        try (Raster source = toRaster(image); Raster result = RasterOps.grayify(source)) {
+            return toImage(result);
         }
-        return newImage;
     }
 
     /**
@@ -228,23 +232,9 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public WritableImage pixelateImage(WritableImage image) {
-        PixelReader pixelReader = image.getPixelReader();
-        WritableImage newImage = new WritableImage( (int)image.getWidth(), (int)image.getHeight() );
-        PixelWriter pixelWriter = newImage.getPixelWriter();
-
-        for (int y = 2; y <= image.getHeight() - 2; y += 5) {
-            for (int x = 2; x <= image.getWidth() - 2; x += 5) {
-                Color pixelColor = pixelReader.getColor(x, y);
-                for (int y2 = y - 2; y2 < y + 3; y2++) {
-                    for (int x2 = x - 2; x2 < x + 3; x2++) {
-                        try {   //Try and write pixels, even if they are out of the dimensions of the image
-                            pixelWriter.setColor(x2, y2, pixelColor);
-                        } catch (IndexOutOfBoundsException ignored){ }
-                    }
-                }
-            }
+        try (Raster source = toRaster(image); Raster result = RasterOps.pixelate(source)) {
+            return toImage(result);
         }
-        return newImage;
     }
 
     /**
@@ -270,16 +260,154 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
      */
     @Override
     public WritableImage flipImage(WritableImage image) {
-        PixelReader pixelReader = image.getPixelReader();
-        WritableImage newImage = new WritableImage( (int)image.getWidth(), (int)image.getHeight() );
-        PixelWriter pixelWriter = newImage.getPixelWriter();
+        try (Raster source = toRaster(image); Raster result = RasterOps.flip(source)) {
+            return toImage(result);
+        }
+    }
+
+    /**
+     * Invert only a rectangle of the image, changing the image in place.
+     * Only the pixels in the rectangle are read and written.
+     *
+     * @param image the image to be changed
+     * @param x left column of the rectangle
+     * @param y top row of the rectangle
+     * @param width width of the rectangle in pixels
+     * @param height height of the rectangle in pixels
+     * @return the same image
+     * @throws IllegalArgumentException If the rectangle is not inside the image
+     */
+    @Override
+    public WritableImage invertImage(WritableImage image, int x, int y, int width, int height) {
+        return editRegion(image, LazyImage.Op.INVERT, x, y, width, height);
+    }
 
-        for( int y = 0; y < image.getHeight(); y++ ){
-            for( int x = 0; x < image.getWidth(); x++ ){
-                pixelWriter.setColor( x, y, pixelReader.getColor( x, (int)(image.getHeight() - 1 - y) ) );
+    /**
+     * Convert only a rectangle of the image to grayscale, changing the image in place.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    @Override
+    public WritableImage grayifyImage(WritableImage image, int x, int y, int width, int height) {
+        return editRegion(image, LazyImage.Op.GRAYIFY, x, y, width, height);
+    }
+
+    /**
+     * Pixelate only a rectangle of the image, changing the image in place.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    @Override
+    public WritableImage pixelateImage(WritableImage image, int x, int y, int width, int height) {
+        return editRegion(image, LazyImage.Op.PIXELATE, x, y, width, height);
+    }
+
+    /**
+     * Flip only a rectangle of the image vertically, changing the image in place.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    @Override
+    public WritableImage flipImage(WritableImage image, int x, int y, int width, int height) {
+        return editRegion(image, LazyImage.Op.FLIP, x, y, width, height);
+    }
+
+    /**
+     * Copy a rectangle out of the image, modify the copy and write it back
+     */
+    private static WritableImage editRegion(WritableImage image, LazyImage.Op op, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0
+                || x > image.getWidth() - width || y > image.getHeight() - height)
+            throw new IllegalArgumentException(String.format("Region %dx%d at (%d, %d) is not inside a %.0fx%.0f image",
+                    width, height, x, y, image.getWidth(), image.getHeight()));
+        try (Raster region = toRaster(image, x, y, width, height)) {
+            RasterOps.apply(op, region, 0, 0, width, height);
+            copyRegion(region, image, 0, 0, width, height, x, y);
+        }
+        return image;
+    }
+
+    /**
+     * Copy the pixels of a JavaFX image into a new off-heap raster.
+     * Transparency is dropped, as PPM has no alpha channel.
+     *
+     * @param image Image to copy
+     * @return raster holding the same pixels; the caller must close it
+     */
+    static Raster toRaster(WritableImage image) {
+        return toRaster(image, 0, 0, (int)image.getWidth(), (int)image.getHeight());
+    }
+
+    /**
+     * Copy a rectangle of a JavaFX image into a new off-heap raster of the rectangle's size
+     *
+     * @return raster holding the pixels of the rectangle; the caller must close it
+     */
+    static Raster toRaster(WritableImage image, int left, int top, int width, int height) {
+        Raster raster = Raster.allocateForOverwrite(width, height);
+        ByteBuffer pixels = raster.buffer();
+        PixelReader pixelReader = image.getPixelReader();
+        int[] row = RasterPool.scratchInts(width);
+
+        for(int y = 0; y < height; y++) {
+            pixelReader.getPixels(left, top + y, width, 1, PixelFormat.getIntArgbInstance(), row, 0, width);
+            int i = raster.index(0, y);
+            for(int x = 0; x < width; x++) {
+                int argb = row[x];
+                pixels.put(i++, (byte)(argb >> 16));
+                pixels.put(i++, (byte)(argb >> 8));
+                pixels.put(i++, (byte)argb);
             }
         }
-        return newImage;
+        return raster;
+    }
+
+    /**
+     * Copy the pixels of a raster into a new JavaFX image so it can be displayed
+     *
+     * @param raster Raster to copy
+     * @return a new opaque image with the same pixels
+     */
+    static WritableImage toImage(Raster raster) {
+        int width = raster.getWidth(), height = raster.getHeight();
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, pixelFormat(raster),
+                raster.buffer().duplicate().rewind(), raster.rowBytes());
+        return image;
+    }
+
+    /**
+     * Copy a rectangle of a raster into the same place in an image of the same size
+     */
+    static void copyRegion(Raster raster, WritableImage image, int x, int y, int width, int height) {
+        copyRegion(raster, image, x, y, width, height, x, y);
+    }
+
+    /**
+     * Copy a rectangle of a raster into an image
+     *
+     * @param x left column of the rectangle in the raster
+     * @param y top row of the rectangle in the raster
+     * @param toX column in the image to copy it to
+     * @param toY row in the image to copy it to
+     */
+    static void copyRegion(Raster raster, WritableImage image, int x, int y, int width, int height, int toX, int toY) {
+        image.getPixelWriter().setPixels(toX, toY, width, height, pixelFormat(raster),
+                raster.buffer().duplicate().position(raster.index(x, y)), raster.rowBytes());
+    }
+
+    /**
+     * @return the JavaFX format of a raster's bytes: packed RGB, or a gray palette for gray rasters
+     */
+    private static PixelFormat<ByteBuffer> pixelFormat(Raster raster) {
+        return raster.isGray() ? GRAY_PALETTE : PixelFormat.getByteRgbInstance();
+    }
+
+    private static PixelFormat<ByteBuffer> grayPalette() {
+        int[] colors = new int[256];
+        for (int level = 0; level < 256; level++)
+            colors[level] = 0xFF000000 | level << 16 | level << 8 | level;
+        return PixelFormat.createByteIndexedInstance(colors);
     }
 
     /**
@@ -320,14 +448,27 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
 
         //Create Image Label
         Label imageLabel = new Label();
-        ImageView view = new ImageView();
+        PyramidView view = new PyramidView();
+
+        //Any other installed filters get a button each, after the built-in ones
+        List<Button> filterButtons = new ArrayList<>();
+        for (RasterFilter filter : FilterScheduler.installed()) {
+            if (BUILT_IN_FILTERS.contains(filter.getName()))
+                continue;
+            Button button = new Button(filter.getName());
+            button.setDisable(true);
+            button.setOnAction( event -> applyFilter( view, filter ));
+            filterButtons.add(button);
+            buttonBox.getChildren().add( button );
+        }
 
         view.setPreserveRatio(true);
         view.setSmooth(true);
         view.setFitHeight(height-100);
 
 
-        imageLabel.setGraphic( view );
+        //The selection outline is drawn over the view, in the same pane
+        imageLabel.setGraphic( new Pane( view, view.getSelectionOverlay() ) );
         root.setCenter( imageLabel );
 
         //Disable iamge modifier buttons because no image is loaded
@@ -339,7 +480,11 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
 
         FileChooser fileChooser = new FileChooser();
         FileChooser.ExtensionFilter fileFilter = new FileChooser.ExtensionFilter("Portable Pixel Map", "*.ppm");
-        fileChooser.getExtensionFilters().add(fileFilter);
+        FileChooser.ExtensionFilter binaryFilter = new FileChooser.ExtensionFilter("Portable Pixel Map, binary (P6)", "*.ppm");
+        //Gray images only, a third of the size
+        FileChooser.ExtensionFilter grayFilter = new FileChooser.ExtensionFilter("Portable Gray Map", "*.pgm");
+        FileChooser.ExtensionFilter grayBinaryFilter = new FileChooser.ExtensionFilter("Portable Gray Map, binary (P5)", "*.pgm");
+        fileChooser.getExtensionFilters().addAll(fileFilter, binaryFilter, grayFilter, grayBinaryFilter);
         fileChooser.setInitialDirectory(new File("./"));
 
         //Event handlers for buttons
@@ -349,20 +494,22 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
             File file = fileChooser.showOpenDialog(ImageManipulator.this.primaryStage);
             if( file != null ) {
                 try {
-                    view.setImage( loadImage(file.getAbsolutePath()) );
+                    setLoadedImage( view, loadRaster(file.getAbsolutePath()) );
                 } catch( FileNotFoundException e ){
                     infoPopup( new String[] {"File not found.", file.getName() } );
                 } finally {
-                    if( view.getImage() != null ) {
+                    if( view.getPyramid() != null ) {
                         //Set width and height
-                        width = view.getImage().getWidth();
-                        height = view.getImage().getHeight();
+                        width = view.getPyramid().getWidth();
+                        height = view.getPyramid().getHeight();
                         //Re-enable Image Modifiers once image is loaded
                         buttons.get("Save").setDisable(false);
                         buttons.get("Flip").setDisable(false);
                         buttons.get("Invert").setDisable(false);
                         buttons.get("Grayscale").setDisable(false);
                         buttons.get("Pixelate").setDisable(false);
+                        for( Button button : filterButtons )
+                            button.setDisable(false);
                     }
                 }
             }
@@ -373,25 +520,33 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
             File file = fileChooser.showSaveDialog(this.primaryStage);
             if (file != null )
                 try {
-                    saveImage(file.getAbsolutePath(), (WritableImage) view.getImage());
+                    //The view may be showing a smaller level, so save the full size image
+                    saveRaster(file.getAbsolutePath(), view.getPyramid().getLevel(0),
+                              fileChooser.getSelectedExtensionFilter() == binaryFilter
+                              || fileChooser.getSelectedExtensionFilter() == grayBinaryFilter);
+                    savePopup( file );
                 } catch ( FileNotFoundException e ){
                     infoPopup( new String[] {"File not found.", file.getName() } );
-                } finally {
-                    savePopup( file );
+                } catch ( IllegalArgumentException e ){
+                    infoPopup( new String[] {"Not saved", "Only a grayscale image", "can be saved as PGM"} );
                 }
         });
 
-        //On flip, call flipImage
-        buttons.get("Flip").setOnAction( event -> view.setImage( flipImage( (WritableImage) view.getImage() ) ));
+        //Modifiers are recorded lazily and simplified before any pixels are computed,
+        //so e.g. flipping twice just shows the loaded image again.
+        //With a rectangle selected (drag with the left button), only that part is modified.
 
-        //On Invert, call invertImage
-        buttons.get("Invert").setOnAction( event -> view.setImage( invertImage( (WritableImage) view.getImage() ) ));
+        //On flip, record a flip
+        buttons.get("Flip").setOnAction( event -> modify( view, LazyImage.Op.FLIP ));
 
-        //On Grayscale, call grayifyImage
-        buttons.get("Grayscale").setOnAction( event -> view.setImage( grayifyImage( (WritableImage) view.getImage() ) ));
+        //On Invert, record an invert
+        buttons.get("Invert").setOnAction( event -> modify( view, LazyImage.Op.INVERT ));
 
-        //On Pixelate, call pixelateImage
-        buttons.get("Pixelate").setOnAction( event -> view.setImage( pixelateImage( (WritableImage) view.getImage() ) ));
+        //On Grayscale, record a grayscale
+        buttons.get("Grayscale").setOnAction( event -> modify( view, LazyImage.Op.GRAYIFY ));
+
+        //On Pixelate, record a pixelate
+        buttons.get("Pixelate").setOnAction( event -> modify( view, LazyImage.Op.PIXELATE ));
 
         //On window height resize, scale image to new height
         primaryStage.heightProperty().addListener((observable, oldHeight, newHeight) -> {
@@ -410,6 +565,94 @@ public class ImageManipulator extends Application implements ImageManipulatorInt
         this.primaryStage.show();
     }
 
+    /**
+     * Start a fresh edit history for a newly loaded image and show it
+     *
+     * @param view PyramidView to display in
+     * @param image the loaded image, which the pyramid takes over, or null if loading failed
+     */
+    private void setLoadedImage( PyramidView view, Raster image ){
+        if( image == null )
+            return;
+        if( image.getMappedFile() != null ) {
+            //A mapped file is read-only and stays open, but region edits write in place
+            try ( Raster mapped = image ) {
+                image = LazyImage.of( mapped ).force();
+            }
+        }
+        ImagePyramid previous = view.getPyramid(), previousLoaded = loadedPyramid;
+        loadedPyramid = ImagePyramid.build( image );
+        edits = LazyImage.of( loadedPyramid.getLevel(0) );
+        view.setPyramid( loadedPyramid );
+        if( previous != null && previous != previousLoaded )
+            previous.close();
+        if( previousLoaded != null )
+            previousLoaded.close();
+    }
+
+    /**
+     * Modify the selected rectangle, or the whole image if nothing is selected
+     *
+     * @param view PyramidView to display in
+     * @param op the modification
+     */
+    private void modify( PyramidView view, LazyImage.Op op ){
+        if( view.getSelection() == null )
+            showEdits( view, op );
+        else
+            showRegionEdit( view, op, view.getSelection() );
+    }
+
+    /**
+     * Modify a rectangle of the shown image in place and redraw just that part.
+     * The shown image is changed directly, so it becomes the base for later edits.
+     *
+     * @param view PyramidView to display in
+     * @param op the modification
+     * @param region rectangle to modify, in full size pixels
+     */
+    private void showRegionEdit( PyramidView view, LazyImage.Op op, Rectangle2D region ){
+        ImagePyramid current = view.getPyramid();
+        if( current != loadedPyramid ) {
+            loadedPyramid.close();
+            loadedPyramid = current;
+        }
+        edits = LazyImage.of( current.getLevel(0) );
+        current.editRegion( op, (int)region.getMinX(), (int)region.getMinY(),
+                (int)region.getWidth(), (int)region.getHeight(),
+                () -> Platform.runLater( () -> view.regionChanged(region) ) );
+    }
+
+    /**
+     * Record one more edit and display the result.
+     * Only computes pixels if the edits do not cancel out, and updates the
+     * smaller display levels from the ones already shown rather than rebuilding them.
+     *
+     * @param view PyramidView to display in
+     * @param op the edit to record
+     */
+    private void showEdits( PyramidView view, LazyImage.Op op ){
+        ImagePyramid previous = view.getPyramid();
+        edits = edits.then(op);
+        if( edits.isIdentity() )
+            view.setPyramid( loadedPyramid );
+        else
+            view.setPyramid( previous.derive( edits.force(), op ) );
+        if( previous != loadedPyramid )
+            previous.close();
+    }
+
+    /**
+     * Apply a plug-in filter to the whole shown image. The result becomes the new base
+     * image, as after a region edit, since LazyImage only knows the built-in modifications.
+     *
+     * @param view PyramidView to display in
+     * @param filter the filter to apply
+     */
+    private void applyFilter( PyramidView view, RasterFilter filter ){
+        setLoadedImage( view, FilterScheduler.run( view.getPyramid().getLevel(0), List.of( filter ) ) );
+    }
+
     private void infoPopup( String[] messages ){
         Stage popup = new Stage();
         popup.setTitle(messages[0]);
@@ -114,4 +114,41 @@ public interface ImageManipulatorInterface {
      * @return a new image that displays upside-down (but not rotated!)
      */
     public WritableImage flipImage(WritableImage image);
+
+    /**
+     * Invert only a rectangle of the image, changing the image in place.
+     * Takes time in proportion to the rectangle, not the whole image.
+     *
+     * @param image - the image to be changed
+     * @param x - left column of the rectangle
+     * @param y - top row of the rectangle
+     * @param width - width of the rectangle in pixels
+     * @param height - height of the rectangle in pixels
+     * @return the same image, for chaining
+     * @throws IllegalArgumentException if the rectangle is not inside the image
+     */
+    public WritableImage invertImage(WritableImage image, int x, int y, int width, int height);
+
+    /**
+     * Convert only a rectangle of the image to grayscale, changing the image in place.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    public WritableImage grayifyImage(WritableImage image, int x, int y, int width, int height);
+
+    /**
+     * Pixelate only a rectangle of the image, changing the image in place.
+     * The rectangle comes out as if it were pixelated as an image of its own,
+     * so the 5x5 regions start at its top left corner.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    public WritableImage pixelateImage(WritableImage image, int x, int y, int width, int height);
+
+    /**
+     * Flip only a rectangle of the image vertically, changing the image in place.
+     *
+     * @see #invertImage(WritableImage, int, int, int, int)
+     */
+    public WritableImage flipImage(WritableImage image, int x, int y, int width, int height);
 }
@@ -1,8 +1,38 @@
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import javafx.scene.image.PixelReader;
 import javafx.scene.image.PixelWriter;
@@ -357,6 +387,1101 @@ public class ImageManipulatorTest {
         }
     }
 
+    @Test
+    public void saveBinaryTest() {
+        ImageManipulator lab = new ImageManipulator();
+        String filename = "baboon.ppm";
+        String filename2 = "SAVETESTbaboon." + System.nanoTime() + ".ppm";
+        WritableImage source = null;
+        try {
+            source = loadImage(path + filename);
+        } catch (FileNotFoundException e) {
+            fail(String.format("loadImage( %s ): FileNotFoundException",
+                    path + filename));
+        } catch (FileFormatException e) {
+            fail(String.format("loadImage( %s ): FileFormatException",
+                    path + filename));
+        }
+        File saveFile = new File(path + filename2);
+        try {
+            WritableImage result = null;
+            try {
+                lab.saveImage(path + filename2, source, true);
+                result = lab.loadImage(path + filename2);
+            } catch (Exception e) {
+                e.printStackTrace ();
+                fail("saveImage(" + filename2 + ", binary) failed: " + e.getMessage());
+            }
+            if (saveFile.length() >= new File(path + filename).length()) {
+                fail("saveImage( binary ): P6 file is not smaller than P3");
+            }
+            if (result == null || !compareImages(result, source)) {
+                fail(String.format("saveImage( %s, binary ): result != solution",
+                        filename));
+            }
+        } finally {
+            saveFile.delete();
+        }
+    }
+
+    @Test
+    public void saveOverMappedTest() {
+        // A mapped P6 file saved over itself, with a shorter header than PpmWriter's
+        byte[] pixels = new byte[64 * 48 * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i * 7);
+        }
+        File file = new File(path + "MAPPEDTEST." + System.nanoTime() + ".ppm");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write("P6\n64 48\n255\n".getBytes());
+            bytes.write(pixels);
+            Files.write(file.toPath(), bytes.toByteArray());
+            try (Raster mapped = PpmReader.read(file.getPath())) {
+                assertNotNull("P6 file was not mapped", mapped.getMappedFile());
+                PpmWriter.writeBinary(file.getPath(), mapped);
+                try (Raster result = PpmReader.read(file.getPath())) {
+                    assertEquals(ByteBuffer.wrap(pixels), result.buffer().duplicate().rewind());
+                    assertEquals(ByteBuffer.wrap(pixels), mapped.buffer().duplicate().rewind());
+                }
+                // Two saves over the same file at once each write their own temporary file
+                CompletableFuture<?>[] saves = new CompletableFuture<?>[2];
+                for (int i = 0; i < saves.length; i++) {
+                    saves[i] = CompletableFuture.runAsync(() -> {
+                        for (int j = 0; j < 20; j++) {
+                            try {
+                                PpmWriter.writeBinary(file.getPath(), mapped);
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                }
+                CompletableFuture.allOf(saves).get(30, TimeUnit.SECONDS);
+                try (Raster result = PpmReader.read(file.getPath())) {
+                    assertEquals(ByteBuffer.wrap(pixels), result.buffer().duplicate().rewind());
+                }
+            }
+        } catch (Exception e) {
+            fail("writeBinary over its mapped source failed: " + e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readAheadTest() {
+        String[] filenames = {"test1.ppm", "test2.ppm", "test3.ppm", "baboon.ppm"};
+        List<Path> files = new ArrayList<>();
+        for (String filename : filenames) {
+            files.add(Paths.get(path + filename));
+        }
+        // A 1 byte memory cap still has to make progress, one file at a time
+        try (ReadAhead readAhead = new ReadAhead(files, 2, 1)) {
+            for (String filename : filenames) {
+                ReadAhead.Prefetched file = readAhead.next();
+                assertEquals(Paths.get(path + filename), file.getPath());
+                try (Raster result = PpmReader.read(file.getData(), filename);
+                     Raster solution = PpmReader.read(path + filename)) {
+                    readAhead.done(file);
+                    if (!result.buffer().equals(solution.buffer())) {
+                        fail(String.format("ReadAhead( %s ): parsed pixels differ", filename));
+                    }
+                }
+            }
+            assertFalse(readAhead.hasNext());
+        } catch (IOException e) {
+            fail("ReadAhead failed: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void readAheadLatencyTest() {
+        // Every read takes 200 ms, like a slow network share
+        String[] filenames = {"test1.ppm", "test2.ppm", "test3.ppm"};
+        List<Path> files = new ArrayList<>();
+        Map<Path, CountDownLatch> finished = new ConcurrentHashMap<>();
+        for (String filename : filenames) {
+            files.add(Paths.get(path + filename));
+            finished.put(files.get(files.size() - 1), new CountDownLatch(1));
+        }
+        ReadAhead.Opener slow = file -> new ThrottledChannel(
+                AsynchronousFileChannel.open(file, StandardOpenOption.READ), 200, finished.get(file));
+        try (ReadAhead readAhead = new ReadAhead(files, 2, Long.MAX_VALUE, slow)) {
+            for (int i = 0; i < files.size(); i++) {
+                ReadAhead.Prefetched file = readAhead.next();
+                assertEquals(files.get(i), file.getPath());
+                // The next file is read while this one is still being worked on
+                if (i + 1 < files.size() && !finished.get(files.get(i + 1)).await(5, TimeUnit.SECONDS)) {
+                    fail(String.format("ReadAhead: %s was not read ahead of done( %s )",
+                            filenames[i + 1], filenames[i]));
+                }
+                readAhead.done(file);
+            }
+        } catch (IOException | InterruptedException e) {
+            fail("ReadAhead failed: " + e);
+        }
+    }
+
+    @Test
+    public void strictLoadTest() {
+        // Each malformed file and the byte offset its error should be reported at
+        String[][] cases = {
+            {"P3\n2 1\n255\n1 2 3 4 5\n", "21"},           // truncated
+            {"P3\n1 1\n255\n1 2 3 4\n", "17"},             // extra data
+            {"P3\n1 1\n255\n1 2 300\n", "15"},             // sample over max value
+            {"P3\n1 1\n255\n1 x 3\n", "13"},               // not a number
+            {"P6\n40000 40000\n255\n", "3"},               // over the size limit
+            {"P6\n2 1\n255\nabc", "14"},                   // truncated binary data
+            {"P4\n1 1\n0", "0"},                           // not a PPM or PGM
+        };
+        for (String[] testCase : cases) {
+            File file = new File(path + "STRICTTEST." + System.nanoTime() + ".ppm");
+            try {
+                try (PrintWriter writer = new PrintWriter(file)) {
+                    writer.print(testCase[0]);
+                }
+                PpmReader.readStrict(file.getPath(), PpmReader.Limits.DEFAULT).close();
+                fail("readStrict accepted " + testCase[0].replace("\n", "\\n"));
+            } catch (PpmFormatException e) {
+                assertEquals(e.getMessage(), Long.parseLong(testCase[1]), e.getOffset());
+            } catch (IOException e) {
+                fail("readStrict: unexpected " + e);
+            } finally {
+                file.delete();
+            }
+        }
+        // readStrictCopy never maps, so the file can go while the raster is still open
+        File file = new File(path + "STRICTTEST." + System.nanoTime() + ".ppm");
+        try {
+            Files.write(file.toPath(), "P6\n2 1\n255\nabcdef".getBytes());
+            try (Raster raster = PpmReader.readStrictCopy(file.getPath(), PpmReader.Limits.DEFAULT)) {
+                assertNull("readStrictCopy mapped the file", raster.getMappedFile());
+                assertTrue(file.delete());
+                assertEquals('f', raster.get(1, 0, 2));
+            }
+        } catch (IOException e) {
+            fail("readStrictCopy: unexpected " + e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void lazyImageTest() {
+        ImageManipulator lab = new ImageManipulator();
+        String filename = "baboon.ppm";
+        WritableImage source = null;
+        try {
+            source = loadImage(path + filename);
+        } catch (FileNotFoundException e) {
+            fail(String.format("loadImage( %s ): FileNotFoundException",
+                    path + filename));
+        } catch (FileFormatException e) {
+            fail(String.format("loadImage( %s ): FileFormatException",
+                    path + filename));
+        }
+        try (Raster raster = ImageManipulator.toRaster(source)) {
+            LazyImage lazy = LazyImage.of(raster);
+            if (!lazy.flip().invert().flip().invert().isIdentity()) {
+                fail("LazyImage: flip, invert, flip, invert should cancel out");
+            }
+            WritableImage solution = lab.invertImage(lab.grayifyImage(
+                    lab.pixelateImage(lab.flipImage(source))));
+            WritableImage result;
+            try (Raster forced = lazy.flip().pixelate().grayify().flip().flip().invert().force()) {
+                result = ImageManipulator.toImage(forced);
+            }
+            if (!compareImages(result, solution)) {
+                fail(String.format("LazyImage( %s ): result:%s != solution:%s",
+                        filename, stringifyImage(result),
+                        stringifyImage(solution)));
+            }
+        }
+    }
+
+    @Test
+    public void regionTest() {
+        ImageManipulator lab = new ImageManipulator();
+        String filename = "baboon.ppm";
+        WritableImage source = null;
+        try {
+            source = loadImage(path + filename);
+        } catch (FileNotFoundException e) {
+            fail(String.format("loadImage( %s ): FileNotFoundException",
+                    path + filename));
+        } catch (FileFormatException e) {
+            fail(String.format("loadImage( %s ): FileFormatException",
+                    path + filename));
+        }
+        // Not a multiple of 5, so pixelate leaves black edges inside the region
+        int x = 13, y = 7, width = 101, height = 53;
+        for (LazyImage.Op op : LazyImage.Op.values()) {
+            // Solution: cut the region out, modify it as a whole image, paste it back
+            WritableImage region = new WritableImage(source.getPixelReader(), x, y, width, height);
+            switch (op) {
+                case INVERT: region = lab.invertImage(region); break;
+                case GRAYIFY: region = lab.grayifyImage(region); break;
+                case PIXELATE: region = lab.pixelateImage(region); break;
+                default: region = lab.flipImage(region);
+            }
+            WritableImage solution = copyImage(source);
+            solution.getPixelWriter().setPixels(x, y, width, height, region.getPixelReader(), 0, 0);
+
+            WritableImage result = copyImage(source);
+            switch (op) {
+                case INVERT: lab.invertImage(result, x, y, width, height); break;
+                case GRAYIFY: lab.grayifyImage(result, x, y, width, height); break;
+                case PIXELATE: lab.pixelateImage(result, x, y, width, height); break;
+                default: lab.flipImage(result, x, y, width, height);
+            }
+            if (!compareImages(result, solution)) {
+                fail(String.format("%s region( %s ): result:%s != solution:%s",
+                        op, filename, stringifyImage(result),
+                        stringifyImage(solution)));
+            }
+        }
+        try {
+            lab.invertImage(source, 400, 0, 200, 10);
+            fail("invertImage: region outside the image should throw IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void pyramidTest() {
+        String filename = "baboon.ppm";
+        int[][] sizes = {{500, 480}, {250, 240}, {125, 120}};
+        List<Raster> solutions = new ArrayList<>();
+        try {
+            ImagePyramid pyramid = ImagePyramid.build(PpmReader.read(path + filename));
+            // Odd edges, so each smaller level has a pixel half in and half out of the region
+            CountDownLatch updated = new CountDownLatch(1);
+            pyramid.editRegion(LazyImage.Op.INVERT, 13, 7, 101, 53, updated::countDown);
+            assertTrue("editRegion never finished", updated.await(10, TimeUnit.SECONDS));
+
+            // Solution: edit the full image, then shrink it level by level
+            solutions.add(PpmReader.read(path + filename));
+            RasterOps.apply(LazyImage.Op.INVERT, solutions.get(0), 13, 7, 101, 53);
+            assertEquals(sizes.length, pyramid.getLevelCount());
+            for (int i = 0; i < sizes.length; i++) {
+                if (i > 0) {
+                    solutions.add(RasterOps.downsample(solutions.get(i - 1)));
+                }
+                Raster level = pyramid.getLevel(i);
+                assertEquals("level " + i + " width", sizes[i][0], level.getWidth());
+                assertEquals("level " + i + " height", sizes[i][1], level.getHeight());
+                if (!level.buffer().equals(solutions.get(i).buffer())) {
+                    fail(String.format("editRegion( %s ): level %d was not brought up to date", filename, i));
+                }
+            }
+
+            // A derived pyramid applies the same op to each level of the one it came from
+            ImagePyramid flipped = pyramid.derive(RasterOps.apply(LazyImage.Op.FLIP, pyramid.getLevel(0)),
+                    LazyImage.Op.FLIP);
+            awaitPyramidBuilder();
+            assertEquals(sizes.length, flipped.getLevelCount());
+            for (int i = 0; i < sizes.length; i++) {
+                try (Raster solution = RasterOps.apply(LazyImage.Op.FLIP, pyramid.getLevel(i))) {
+                    if (!flipped.getLevel(i).buffer().equals(solution.buffer())) {
+                        fail(String.format("derive( %s ): level %d differs from the flipped level", filename, i));
+                    }
+                }
+            }
+
+            pyramid.close();
+            flipped.close();
+            awaitPyramidBuilder();
+            assertTrue(pyramid.isClosed());
+            assertEquals(0, pyramid.getLevelCount());
+            assertEquals(500, pyramid.getWidth());
+            try {
+                pyramid.getLevel(0);
+                fail("getLevel after close should throw IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        } catch (IOException | InterruptedException e) {
+            fail("ImagePyramid failed: " + e);
+        } finally {
+            for (Raster solution : solutions) {
+                solution.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for everything already queued on the pyramid builder thread, which runs its work in order
+     */
+    private static void awaitPyramidBuilder() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        try (ImagePyramid barrier = ImagePyramid.build(Raster.allocate(1, 1))) {
+            barrier.editRegion(LazyImage.Op.INVERT, 0, 0, 1, 1, done::countDown);
+            assertTrue("ImagePyramid builder is stuck", done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void grayTest() {
+        ImageManipulator lab = new ImageManipulator();
+        String filename = "baboon.ppm";
+        String filename2 = "baboon_gray.ppm";
+        File[] saveFiles = {new File(path + "GRAYTEST." + System.nanoTime() + ".pgm"),
+                new File(path + "GRAYTEST." + System.nanoTime() + ".p5.pgm")};
+        try (Raster source = PpmReader.read(path + filename);
+             Raster gray = RasterOps.grayify(source);
+             Raster solution = PpmReader.read(path + filename2)) {
+            assertTrue("grayify should return a one channel raster", gray.isGray());
+            // The modifications keep a gray raster gray and match the color results
+            for (LazyImage.Op op : LazyImage.Op.values()) {
+                try (Raster result = RasterOps.apply(op, gray);
+                     Raster expected = RasterOps.apply(op, solution)) {
+                    assertTrue(op + " should keep the raster gray", result.isGray());
+                    if (!compareImages(ImageManipulator.toImage(result), ImageManipulator.toImage(expected))) {
+                        fail(String.format("%s( gray %s ): differs from the color result", op, filename));
+                    }
+                }
+            }
+            // Saved as PGM and loaded back into a gray raster
+            WritableImage expected = ImageManipulator.toImage(solution);
+            lab.saveImage(saveFiles[0].getPath(), lab.grayifyImage(lab.loadImage(path + filename)));
+            lab.saveImage(saveFiles[1].getPath(), expected, true);
+            for (File saveFile : saveFiles) {
+                try (Raster loaded = PpmReader.read(saveFile.getPath())) {
+                    assertTrue(saveFile + " should load as a gray raster", loaded.isGray());
+                }
+                if (!compareImages(lab.loadImage(saveFile.getPath()), expected)) {
+                    fail(String.format("saveImage( %s ): PGM does not load back the same", saveFile));
+                }
+            }
+            // One byte per pixel instead of three
+            assertEquals(PpmWriter.binarySize(gray), saveFiles[1].length());
+        } catch (IOException e) {
+            fail("Gray raster failed: " + e.getMessage());
+        } finally {
+            for (File saveFile : saveFiles) {
+                saveFile.delete();
+            }
+        }
+        try {
+            lab.saveImage(path + "GRAYTEST.pgm", lab.loadImage(path + filename));
+            fail("saveImage: a color image should not save as PGM");
+        } catch (IllegalArgumentException expected) {
+        } catch (FileNotFoundException e) {
+            fail("saveImage: unexpected " + e);
+        } finally {
+            new File(path + "GRAYTEST.pgm").delete();
+        }
+    }
+
+    @Test
+    public void spoolTest() {
+        String[] filenames = {"test1.ppm", "test2.ppm"};
+        try {
+            Path input = Files.createTempDirectory("spool-input");
+            for (String filename : filenames) {
+                Files.copy(Paths.get(path + filename), input.resolve(filename));
+            }
+            Spool spool = new Spool(Files.createTempDirectory("spool"));
+            SpoolCoordinator.submit(spool, input, List.of("invert"), true);
+
+            // A worker that crashed holding a lease: it is never renewed and expires
+            Spool.Lease crashed = spool.claim("crashed");
+            Files.setLastModifiedTime(crashed.getFile(), FileTime.fromMillis(0));
+
+            SpoolWorker worker = new SpoolWorker(spool, "worker", 1000);
+            worker.run(false);
+            assertEquals(List.of(filenames), spool.completedJobs());
+            assertEquals(0, spool.leaseCount());
+            assertEquals("2", worker.stats().getProperty("jobs"));
+            for (String filename : filenames) {
+                try (Raster result = PpmReader.read(spool.completedResult(filename).toString());
+                     Raster source = PpmReader.read(path + filename);
+                     Raster solution = RasterOps.invert(source)) {
+                    if (!result.buffer().equals(solution.buffer())) {
+                        fail(String.format("SpoolWorker( %s ): result differs from invert", filename));
+                    }
+                }
+            }
+
+            // A gray result is published as .pgm, like BatchProcessor saves it
+            Spool graySpool = new Spool(Files.createTempDirectory("spool"));
+            SpoolCoordinator.submit(graySpool, input, List.of("grayscale"), true);
+            new SpoolWorker(graySpool, "worker", 1000).run(false);
+            assertEquals(List.of(filenames), graySpool.completedJobs());
+            for (String filename : filenames) {
+                Path result = graySpool.completedResult(filename);
+                assertEquals(filename.replace(".ppm", ".pgm"), result.getFileName().toString());
+                assertFalse(Files.exists(graySpool.resultFor(filename)));
+                try (Raster gray = PpmReader.read(result.toString())) {
+                    assertTrue(gray.isGray());
+                }
+            }
+
+            // A filter that reclaims the lease of the job it is working on, the first time
+            Spool raceSpool = new Spool(Files.createTempDirectory("spool"));
+            AtomicBoolean stolen = new AtomicBoolean(false);
+            FilterScheduler.install(new RasterFilter() {
+                public String getName() {
+                    return "steal";
+                }
+
+                public Kind getKind() {
+                    return Kind.PER_PIXEL;
+                }
+
+                public int filterPixel(int rgb) {
+                    if (stolen.compareAndSet(false, true)) {
+                        try (Stream<Path> leases = Files.list(raceSpool.getRoot().resolve("leased"))) {
+                            for (Path lease : leases.toArray(Path[]::new)) {
+                                Files.setLastModifiedTime(lease, FileTime.fromMillis(0));
+                            }
+                            raceSpool.reclaimExpired(1000);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return rgb;
+                }
+            });
+            SpoolWorker raceWorker;
+            try {
+                SpoolCoordinator.submit(raceSpool, input, List.of("steal"), true);
+
+                // A claimed job starts with a fresh lease, however old the pending file is
+                Files.setLastModifiedTime(raceSpool.getRoot().resolve("pending").resolve(filenames[0]),
+                        FileTime.fromMillis(0));
+                Spool.Lease fresh = raceSpool.claim("other");
+                assertEquals(0, raceSpool.reclaimExpired(1000));
+                assertTrue(Files.exists(fresh.getFile()));
+                Files.setLastModifiedTime(fresh.getFile(), FileTime.fromMillis(0));
+                assertEquals(1, raceSpool.reclaimExpired(1000));
+
+                // A worker whose lease is reclaimed while it works abandons the job instead of
+                // publishing it, then claims it again and finishes it
+                raceWorker = new SpoolWorker(raceSpool, "worker", 1000);
+                raceWorker.run(false);
+            } finally {
+                FilterScheduler.uninstall("steal");
+            }
+            assertTrue(stolen.get());
+            assertEquals(List.of(filenames), raceSpool.completedJobs());
+            assertEquals("The abandoned job should not count", "2", raceWorker.stats().getProperty("jobs"));
+
+            // A filter that throws fails each job, and the worker carries on with the next
+            FilterScheduler.install(new FailingFilter());
+            Spool failingSpool = new Spool(Files.createTempDirectory("spool"));
+            SpoolWorker failingWorker;
+            try {
+                SpoolCoordinator.submit(failingSpool, input, List.of("failing"), true);
+                failingWorker = new SpoolWorker(failingSpool, "worker", 1000);
+                failingWorker.run(false);
+            } finally {
+                FilterScheduler.uninstall("failing");
+            }
+            assertEquals(List.of(filenames), failingSpool.failedJobs());
+            assertEquals("2", failingWorker.stats().getProperty("failed"));
+            assertEquals(List.of(), failingSpool.completedJobs());
+            try (Stream<Path> done = Files.list(failingSpool.getRoot().resolve("done"))) {
+                assertEquals("Temporary results should be deleted", 0, done.count());
+            }
+        } catch (IOException e) {
+            fail("Spool failed: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void imageServiceTest() {
+        ImageService service = null;
+        try {
+            byte[] image = Files.readAllBytes(Paths.get(path + "test2.ppm"));
+            // A small body limit, so an oversized upload stays small
+            service = new ImageService(0, 2, image.length + 100);
+            service.start();
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            String uri = "http://localhost:" + service.getPort() + "/transform";
+
+            HttpResponse<byte[]> response = post(client, uri + "?ops=invert", image);
+            assertEquals(200, response.statusCode());
+            try (Raster result = PpmReader.read(ByteBuffer.wrap(response.body()), "response");
+                 Raster solution = PpmReader.read(path + "test2sol.ppm")) {
+                assertTrue("ImageService( invert ): result != solution", RasterCompare.equal(result, solution));
+            }
+
+            response = post(client, uri + "?ops=invert", "P3\n2 2\n255\n1 2 3\n".getBytes());
+            assertEquals("malformed body", 400, response.statusCode());
+
+            response = post(client, uri + "?ops=invert", new byte[image.length * 4]);
+            assertEquals("oversized body", 413, response.statusCode());
+            // Without a Content-Length the size is only found out while reading
+            byte[] oversized = new byte[image.length * 4];
+            response = client.send(HttpRequest.newBuilder(URI.create(uri + "?ops=invert"))
+                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(oversized)))
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals("oversized chunked body", 413, response.statusCode());
+
+            // A filter that throws fails the request with 500 instead of dropping the connection
+            FilterScheduler.install(new FailingFilter());
+            try {
+                response = post(client, uri + "?ops=failing", image);
+            } finally {
+                FilterScheduler.uninstall("failing");
+            }
+            assertEquals("failing filter", 500, response.statusCode());
+            assertTrue(new String(response.body()).contains("Failing filter"));
+
+            response = post(client, uri + "?ops=invert,sharpen", image);
+            assertEquals("unknown op", 400, response.statusCode());
+            assertTrue(new String(response.body()).contains("sharpen"));
+        } catch (IOException | InterruptedException e) {
+            fail("ImageService request failed: " + e);
+        } finally {
+            if (service != null) {
+                service.stop();
+            }
+        }
+    }
+
+    private static HttpResponse<byte[]> post(HttpClient client, String uri, byte[] body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    @Test
+    public void compareTest() {
+        String filename = "baboon.ppm";
+        try (Raster source = PpmReader.read(path + filename);
+             Raster changed = RasterOps.invert(RasterOps.invert(source))) {
+            assertTrue("An image should equal itself", RasterCompare.equal(source, changed));
+            try (RasterCompare.Result result = RasterCompare.compare(source, changed, false)) {
+                assertTrue(result.isEqual());
+                assertEquals(0, result.getMaxDelta());
+                assertEquals(Double.POSITIVE_INFINITY, result.getPsnr(), 0);
+            }
+
+            // Change one channel of one pixel near the bottom right
+            int x = source.getWidth() - 3, y = source.getHeight() - 2;
+            int green = changed.get(x, y, 1);
+            changed.set(x, y, 1, green < 128 ? green + 40 : green - 40);
+            assertFalse("A changed pixel should be found", RasterCompare.equal(source, changed));
+            try (RasterCompare.Result result = RasterCompare.compare(source, changed, true)) {
+                assertFalse(result.isEqual());
+                assertEquals(1, result.getMismatchedPixels());
+                assertEquals(40, result.getMaxDelta());
+                assertTrue("PSNR should be finite and high", result.getPsnr() > 50 && result.getPsnr() < 100);
+                Raster mask = result.getDiffMask();
+                assertTrue("The diff mask should be gray", mask.isGray());
+                assertEquals(255, mask.get(x, y, 0));
+                assertEquals(0, mask.get(x - 1, y, 0));
+            }
+
+            // A gray raster equals the color raster with the same shades
+            try (Raster gray = RasterOps.grayify(source);
+                 Raster color = RasterOps.toRgb(gray)) {
+                assertTrue("Gray and color copies should be equal", RasterCompare.equal(gray, color));
+                assertFalse("Gray should differ from the original", RasterCompare.equal(gray, source));
+            }
+        } catch (IOException e) {
+            fail("Compare failed: " + e.getMessage());
+        }
+        // Scattered changes, counted pixel by pixel for the solution; the image is tall
+        // enough to be split into several bands
+        try (Raster source = PpmReader.read(path + filename);
+             Raster changed = FilterScheduler.run(source, List.of())) {
+            int width = source.getWidth(), height = source.getHeight();
+            for (int i = 0; i < 500; i++) {
+                int x = (i * 7919) % width, y = (i * 104729) % height, channel = i % 3;
+                changed.set(x, y, channel, 255 - changed.get(x, y, channel));
+            }
+            changed.set(width - 1, height - 1, 2, 255 - changed.get(width - 1, height - 1, 2));
+            int mismatched = 0, maxDelta = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    boolean differs = false;
+                    for (int c = 0; c < 3; c++) {
+                        int delta = Math.abs(source.get(x, y, c) - changed.get(x, y, c));
+                        differs |= delta != 0;
+                        maxDelta = Math.max(maxDelta, delta);
+                    }
+                    if (differs) {
+                        mismatched++;
+                    }
+                }
+            }
+            try (RasterCompare.Result result = RasterCompare.compare(source, changed, false)) {
+                assertEquals(mismatched, result.getMismatchedPixels());
+                assertEquals(maxDelta, result.getMaxDelta());
+            }
+            assertFalse(RasterCompare.equal(source, changed));
+            assertFalse(RasterCompare.equal(changed, source));
+        } catch (IOException e) {
+            fail("Compare failed: " + e.getMessage());
+        }
+        try (Raster small = Raster.allocate(2, 2); Raster large = Raster.allocate(2, 3)) {
+            assertFalse("Different sizes are not equal", RasterCompare.equal(small, large));
+            RasterCompare.compare(small, large, false);
+            fail("compare: different sizes should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void filterTest() {
+        // The four operations are found as installed filters
+        List<String> names = new ArrayList<>();
+        for (RasterFilter filter : FilterScheduler.installed()) {
+            names.add(filter.getName());
+        }
+        assertTrue("Missing installed filters: " + names,
+                names.containsAll(List.of("invert", "grayscale", "pixelate", "flip")));
+        RasterFilter invert = FilterScheduler.named("invert"), gray = FilterScheduler.named("Grayscale");
+        RasterFilter pixelate = FilterScheduler.named("pixelate"), flip = FilterScheduler.named("flip");
+
+        // Per-pixel and geometric filters share a pass, neighborhood filters get their own
+        assertEquals(1, FilterScheduler.plan(List.of(invert, flip, gray)).size());
+        assertEquals(3, FilterScheduler.plan(List.of(invert, pixelate, flip)).size());
+
+        // Every chain of up to three gives the same pixels as LazyImage's simplified chain
+        LazyImage.Op[] ops = LazyImage.Op.values();
+        RasterFilter[] filters = {invert, gray, pixelate, flip};
+        for (String filename : new String[]{"test1.ppm", "baboon.ppm", "baboon_gray.ppm"}) {
+            try (Raster loaded = PpmReader.read(path + filename);
+                 Raster grayCopy = RasterOps.toGray(loaded);
+                 Raster source = grayCopy != null ? grayCopy : loaded;
+                 Raster original = FilterScheduler.run(source, List.of())) {
+                for (int length = 0; length <= 3; length++) {
+                    for (int chain = 0; chain < 1 << (2 * length); chain++) {
+                        LazyImage lazy = LazyImage.of(source);
+                        List<RasterFilter> chosen = new ArrayList<>();
+                        for (int i = 0; i < length; i++) {
+                            int op = (chain >> (2 * i)) & 3;
+                            lazy = lazy.then(ops[op]);
+                            chosen.add(filters[op]);
+                        }
+                        try (Raster result = FilterScheduler.run(source, chosen);
+                             Raster solution = lazy.force()) {
+                            assertEquals(solution.getChannels(), result.getChannels());
+                            if (!RasterCompare.equal(result, solution)) {
+                                fail(String.format("FilterScheduler %s( %s ): differs from LazyImage", names(chosen), filename));
+                            }
+                        }
+                    }
+                }
+                assertTrue("The source should not change", RasterCompare.equal(source, original));
+            } catch (IOException e) {
+                fail("Filter failed: " + e.getMessage());
+            }
+        }
+
+        // A plug-in that adds color gets a color result, also from a gray raster;
+        // the built-in filters keep a gray raster gray
+        RasterFilter tint = new RasterFilter() {
+            public String getName() {
+                return "tint";
+            }
+
+            public Kind getKind() {
+                return Kind.PER_PIXEL;
+            }
+
+            public int filterPixel(int rgb) {
+                return rgb | 0x0000FF;
+            }
+        };
+        try (Raster grayRaster = Raster.allocate(2, 1, Raster.GRAY_CHANNELS)) {
+            grayRaster.set(0, 0, 0, 10);
+            grayRaster.set(1, 0, 0, 200);
+            try (Raster result = FilterScheduler.run(grayRaster, List.of(tint))) {
+                assertFalse("tint( gray ): the color was dropped", result.isGray());
+                assertEquals(10, result.get(0, 0, 0));
+                assertEquals(10, result.get(0, 0, 1));
+                assertEquals(255, result.get(0, 0, 2));
+            }
+            try (Raster result = FilterScheduler.run(grayRaster, List.of(invert, pixelate, flip))) {
+                assertTrue(result.isGray());
+            }
+        }
+        try {
+            FilterScheduler.named("sharpen");
+            fail("named: an unknown filter should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public String names(List<RasterFilter> filters) {
+        List<String> names = new ArrayList<>();
+        for (RasterFilter filter : filters) {
+            names.add(filter.getName());
+        }
+        return names.toString();
+    }
+
+    @Test
+    public void batchTest() {
+        // The filter throws on 1 pixel wide images, which must only skip that file
+        RasterFilter narrowFails = new RasterFilter() {
+            public String getName() {
+                return "narrowFails";
+            }
+
+            public Kind getKind() {
+                return Kind.NEIGHBORHOOD;
+            }
+
+            public int getTileAlignment() {
+                return 0;
+            }
+
+            public void filterTile(Raster source, Raster result, int x, int y, int width, int height) {
+                if (source.getWidth() == 1) {
+                    throw new IllegalStateException("Too narrow");
+                }
+                for (int row = y; row < y + height; row++) {
+                    for (int column = x; column < x + width; column++) {
+                        for (int c = 0; c < 3; c++) {
+                            result.set(column, row, c, 255 - source.get(column, row, c));
+                        }
+                    }
+                }
+            }
+        };
+        Path input = null, output = null;
+        try {
+            input = Files.createTempDirectory("batch-input");
+            output = Files.createTempDirectory("batch-output");
+            Files.write(input.resolve("narrow.ppm"), "P3\n1 1\n255\n1 2 3\n".getBytes());
+            Files.copy(Paths.get(path + "test2.ppm"), input.resolve("test2.ppm"));
+            List<Path> inputs = List.of(input.resolve("narrow.ppm"), input.resolve("test2.ppm"));
+
+            int processed = BatchProcessor.process(inputs, output, List.of(narrowFails), true, 2, Long.MAX_VALUE,
+                    null, new ArrayList<>());
+            assertEquals(1, processed);
+            assertFalse(Files.exists(output.resolve("narrow.ppm")));
+            try (Raster result = PpmReader.read(output.resolve("test2.ppm").toString());
+                 Raster solution = PpmReader.read(path + "test2sol.ppm")) {
+                assertTrue("BatchProcessor( test2.ppm ): result != solution", result.buffer().equals(solution.buffer()));
+            }
+        } catch (IOException e) {
+            fail("BatchProcessor failed: " + e);
+        } finally {
+            deleteTree(input);
+            deleteTree(output);
+        }
+    }
+
+    @Test
+    public void watchFolderTest() {
+        String[] filenames = {"test1.ppm", "test2.ppm"};
+        Path input = null, output = null;
+        try {
+            input = Files.createTempDirectory("watch-input");
+            output = Files.createTempDirectory("watch-output");
+            try (WatchFolder watcher = new WatchFolder(input, output, BatchProcessor.parseOps(List.of("invert")),
+                    true, 2, 1, 100)) {
+                for (String filename : filenames) {
+                    Files.copy(Paths.get(path + filename), input.resolve(filename));
+                }
+                Files.write(input.resolve("bad.ppm"), "P6\n2 2\n255\n".getBytes());
+
+                Properties metrics = awaitWatchFolder(watcher, 3);
+                assertEquals("2", metrics.getProperty("processed"));
+                assertEquals("1", metrics.getProperty("failed"));
+                assertEquals("0", metrics.getProperty("queueDepth"));
+                assertTrue("Lag should be at least the settle time",
+                        Long.parseLong(metrics.getProperty("lagMillisMax")) >= 100);
+            }
+            for (String filename : filenames) {
+                assertTrue(filename + " should be moved to processed/", Files.exists(input.resolve("processed").resolve(filename)));
+                try (Raster result = PpmReader.read(output.resolve(filename).toString());
+                     Raster source = PpmReader.read(path + filename);
+                     Raster solution = RasterOps.invert(source)) {
+                    if (!RasterCompare.equal(result, solution)) {
+                        fail(String.format("WatchFolder( %s ): result differs from invert", filename));
+                    }
+                }
+            }
+            assertTrue("A truncated file should be moved to failed/", Files.exists(input.resolve("failed").resolve("bad.ppm")));
+            assertTrue(Files.exists(input.resolve("failed").resolve("bad.ppm.error")));
+        } catch (IOException | InterruptedException e) {
+            fail("WatchFolder failed: " + e);
+        } finally {
+            deleteTree(input);
+            deleteTree(output);
+        }
+    }
+
+    @Test
+    public void watchFolderBackpressureTest() {
+        // One slow worker and room for one waiting file: the watcher has to wait for room.
+        // The filter also throws on 1 pixel wide images, which must not stop the worker.
+        RasterFilter slow = new RasterFilter() {
+            public String getName() {
+                return "slow";
+            }
+
+            public Kind getKind() {
+                return Kind.NEIGHBORHOOD;
+            }
+
+            public int getTileAlignment() {
+                return 0;
+            }
+
+            public void filterTile(Raster source, Raster result, int x, int y, int width, int height) {
+                if (source.getWidth() == 1) {
+                    throw new IllegalStateException("Too narrow");
+                }
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                result.buffer().put(0, source.buffer(), 0,
+                        Raster.byteSize(source.getWidth(), source.getHeight(), source.getChannels()));
+            }
+        };
+        String[] filenames = {"test1.ppm", "test2.ppm", "test3.ppm"};
+        Path input = null, output = null;
+        try {
+            input = Files.createTempDirectory("watch-input");
+            output = Files.createTempDirectory("watch-output");
+            try (WatchFolder watcher = new WatchFolder(input, output, List.of(slow), true, 1, 1, 50)) {
+                Files.write(input.resolve("narrow.ppm"), "P3\n1 1\n255\n1 2 3\n".getBytes());
+                for (String filename : filenames) {
+                    Files.copy(Paths.get(path + filename), input.resolve(filename));
+                }
+
+                Properties metrics = awaitWatchFolder(watcher, 4);
+                assertEquals("3", metrics.getProperty("processed"));
+                assertEquals("1", metrics.getProperty("failed"));
+                assertTrue("The watcher should have waited for room in the queue: " + metrics,
+                        Long.parseLong(metrics.getProperty("blockedMillis")) > 0);
+            }
+            assertTrue("A file the filter throws on should be moved to failed/",
+                    Files.exists(input.resolve("failed").resolve("narrow.ppm")));
+            assertTrue(Files.exists(input.resolve("failed").resolve("narrow.ppm.error")));
+            for (String filename : filenames) {
+                assertTrue(filename + " should be moved to processed/", Files.exists(input.resolve("processed").resolve(filename)));
+            }
+        } catch (IOException | InterruptedException e) {
+            fail("WatchFolder failed: " + e);
+        } finally {
+            deleteTree(input);
+            deleteTree(output);
+        }
+    }
+
+    /**
+     * Wait until a WatchFolder has processed or failed this many files, giving up after 10 seconds
+     */
+    private static Properties awaitWatchFolder(WatchFolder watcher, int files) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        Properties metrics = watcher.metrics();
+        while (Integer.parseInt(metrics.getProperty("processed"))
+                + Integer.parseInt(metrics.getProperty("failed")) < files) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("WatchFolder did not finish: " + metrics);
+            }
+            Thread.sleep(50);
+            metrics = watcher.metrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Delete a temporary directory and everything in it
+     */
+    private static void deleteTree(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // Only temporary files
+        }
+    }
+
+    @Test
+    public void autoTunerTest() {
+        String filename = "baboon.ppm";
+        try (Raster source = PpmReader.read(path + filename);
+             Raster solution = FilterScheduler.run(source, BatchProcessor.parseOps(List.of("invert", "pixelate")),
+                     AutoTuner.Setting.DEFAULT)) {
+            AutoTuner.Profile profile = AutoTuner.calibrate(FilterScheduler.installed(),
+                    List.of(AutoTuner.SizeClass.SMALL), false);
+            long pixels = (long) source.getWidth() * source.getHeight();
+            for (RasterFilter filter : FilterScheduler.installed()) {
+                AutoTuner.Setting setting = profile.settingFor(filter.getName(), pixels);
+                assertNotNull(filter.getName() + " should be calibrated for small images", setting);
+                assertTrue(setting.getThreads() >= 1 && setting.getThreads() <= Runtime.getRuntime().availableProcessors());
+            }
+            assertNull("Large images were not calibrated", profile.settingFor("invert", 4000L * 3000));
+
+            // Saved and loaded back
+            Path file = Files.createTempFile("tuning", ".properties");
+            profile.save(file);
+            AutoTuner.Profile loaded = AutoTuner.Profile.load(file);
+            assertEquals(profile.settingFor("pixelate", pixels), loaded.settingFor("pixelate", pixels));
+
+            // Tuning changes how the work is split, never the pixels
+            FilterScheduler.setProfile(loaded);
+            try (Raster result = FilterScheduler.run(source, BatchProcessor.parseOps(List.of("invert", "pixelate")))) {
+                assertTrue("A tuned run should give the same pixels", RasterCompare.equal(result, solution));
+            }
+            for (AutoTuner.Setting setting : new AutoTuner.Setting[]{new AutoTuner.Setting(1, 1), new AutoTuner.Setting(1, 3)}) {
+                try (Raster result = FilterScheduler.run(source, BatchProcessor.parseOps(List.of("invert", "pixelate")), setting)) {
+                    assertTrue(setting + " should give the same pixels", RasterCompare.equal(result, solution));
+                }
+            }
+
+            // A profile from a host with a different number of processors is ignored
+            List<String> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(file)) {
+                lines.add(line.startsWith("processors=") ? "processors=" + (Runtime.getRuntime().availableProcessors() + 1) : line);
+            }
+            Files.write(file, lines);
+            assertNull(AutoTuner.Profile.load(file));
+
+            // A fused pass uses the setting of the filter that took longest on its own
+            String processors = "processors=" + Runtime.getRuntime().availableProcessors() + "\n";
+            Files.write(file, (processors
+                    + "flip.small.bandBytes=16384\nflip.small.threads=1\nflip.small.millis=0.5\n"
+                    + "grayscale.small.bandBytes=1048576\ngrayscale.small.threads=1\ngrayscale.small.millis=4.0\n").getBytes());
+            assertEquals(new AutoTuner.Setting(1 << 20, 1), AutoTuner.Profile.load(file)
+                    .settingFor(BatchProcessor.parseOps(List.of("flip", "invert", "grayscale")), 100));
+
+            // Bad values are rejected when the profile is loaded, not when a filter runs
+            for (String bad : new String[]{"invert.small.threads=0", "invert.small.threads=x", "invert.small.bandBytes=-5"}) {
+                Files.write(file, (processors + "invert.small.bandBytes=65536\ninvert.small.threads=1\n" + bad + "\n").getBytes());
+                try {
+                    AutoTuner.Profile.load(file);
+                    fail("Profile.load accepted " + bad);
+                } catch (IOException expected) {
+                }
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            fail("AutoTuner failed: " + e.getMessage());
+        } finally {
+            FilterScheduler.setProfile(null);
+        }
+    }
+
+    @Test
+    public void sequenceTest() {
+        String[] filenames = {"test1.ppm", "baboon.ppm", "test2.ppm", "baboon_gray.ppm", "test1.ppm"};
+        List<RasterFilter> ops = BatchProcessor.parseOps(List.of("invert", "flip", "pixelate"));
+        List<Raster> frames = new ArrayList<>();
+        try {
+            for (String filename : filenames) {
+                frames.add(PpmReader.read(path + filename));
+            }
+            // A gray frame in the middle
+            try (Raster color = frames.get(3)) {
+                frames.set(3, RasterOps.toGray(color));
+            }
+            for (boolean binary : new boolean[]{true, false}) {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                try (PpmSequence.Writer writer = new PpmSequence.Writer(stream, binary)) {
+                    for (Raster frame : frames) {
+                        writer.write(frame);
+                    }
+                }
+                byte[] bytes = stream.toByteArray();
+
+                // Read back frame by frame
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(new ByteArrayInputStream(bytes), "sequence",
+                        PpmReader.Limits.DEFAULT)) {
+                    for (Raster expected : frames) {
+                        try (Raster frame = reader.next()) {
+                            assertNotNull("Missing frame " + reader.getFrameCount(), frame);
+                            assertTrue("Frame " + reader.getFrameCount() + " differs", RasterCompare.equal(frame, expected));
+                            assertEquals(expected.isGray(), frame.isGray());
+                        }
+                    }
+                    assertNull("Only " + frames.size() + " frames were written", reader.next());
+                }
+
+                // Transformed on several threads, and written back in order
+                ByteArrayOutputStream transformed = new ByteArrayOutputStream();
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(new ByteArrayInputStream(bytes), "sequence",
+                        PpmReader.Limits.DEFAULT);
+                     PpmSequence.Writer writer = new PpmSequence.Writer(transformed, binary)) {
+                    assertEquals(frames.size(), PpmSequence.transform(reader, writer, ops, 3));
+                }
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(
+                        new ByteArrayInputStream(transformed.toByteArray()), "transformed", PpmReader.Limits.DEFAULT)) {
+                    for (int i = 0; i < frames.size(); i++) {
+                        try (Raster frame = reader.next();
+                             Raster solution = FilterScheduler.run(frames.get(i), ops)) {
+                            if (!RasterCompare.equal(frame, solution)) {
+                                fail(String.format("PpmSequence.transform( %s ): frame %d is not %s", names(ops), i, filenames[i]));
+                            }
+                        }
+                    }
+                    assertNull(reader.next());
+                }
+
+                // A stream cut short fails at the frame it ends in
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(
+                        new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 10)), "truncated", PpmReader.Limits.DEFAULT)) {
+                    for (int i = 0; i < frames.size(); i++) {
+                        reader.next().close();
+                    }
+                    fail("PpmSequence: a truncated last frame should be rejected");
+                } catch (PpmFormatException expected) {
+                    assertTrue("The error should point past the first frame: " + expected.getMessage(),
+                            expected.getOffset() > 0);
+                }
+
+                // A later frame's header limit is counted from that frame, and reported as such
+                ByteArrayOutputStream longHeader = new ByteArrayOutputStream();
+                longHeader.write(bytes);
+                longHeader.write(("P3\n#" + "x".repeat(5000) + "\n1 1\n255\n1 2 3\n").getBytes());
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(
+                        new ByteArrayInputStream(longHeader.toByteArray()), "long header", PpmReader.Limits.DEFAULT)) {
+                    for (int i = 0; i < frames.size(); i++) {
+                        reader.next().close();
+                    }
+                    reader.next().close();
+                    fail("PpmSequence: a header over 4096 bytes should be rejected");
+                } catch (PpmFormatException expected) {
+                    assertTrue(expected.getMessage(), expected.getMessage().contains("longer than 4096 bytes"));
+                    assertEquals(bytes.length + 4096, expected.getOffset());
+                }
+
+                // Transforming it still writes every frame before the truncated one
+                ByteArrayOutputStream partial = new ByteArrayOutputStream();
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(
+                        new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 10)), "truncated", PpmReader.Limits.DEFAULT);
+                     PpmSequence.Writer writer = new PpmSequence.Writer(partial, binary)) {
+                    PpmSequence.transform(reader, writer, ops, 4);
+                    fail("PpmSequence.transform: a truncated last frame should be rejected");
+                } catch (PpmFormatException expected) {
+                }
+                try (PpmSequence.Reader reader = new PpmSequence.Reader(
+                        new ByteArrayInputStream(partial.toByteArray()), "partial", PpmReader.Limits.DEFAULT)) {
+                    for (int i = 0; i < frames.size() - 1; i++) {
+                        try (Raster frame = reader.next();
+                             Raster solution = FilterScheduler.run(frames.get(i), ops)) {
+                            assertNotNull("Frame " + i + " before the truncated one was not written", frame);
+                            assertTrue("Frame " + i + " differs", RasterCompare.equal(frame, solution));
+                        }
+                    }
+                    assertNull(reader.next());
+                }
+            }
+        } catch (IOException e) {
+            fail("Sequence failed: " + e.getMessage());
+        } finally {
+            for (Raster frame : frames) {
+                frame.close();
+            }
+        }
+    }
+
     public boolean compareImages(WritableImage i1, WritableImage i2) {
         PixelReader p1 = i1.getPixelReader();
         PixelReader p2 = i2.getPixelReader();
@@ -376,10 +1501,122 @@ public class ImageManipulatorTest {
         return true;
     }
 
+    public WritableImage copyImage(WritableImage image) {
+        return new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
+    }
+
     public String stringifyImage(WritableImage i1) {
         return String.format("<IMAGE:%s w=%s h=%s>", i1.hashCode(), i1.getWidth(), i1.getHeight());
     }
 
+    /**
+     * Throws on every pixel, like a broken plug-in. Installed as "failing", and uninstalled
+     * again, by the tests of the tools that look filters up by name.
+     */
+    private static class FailingFilter implements RasterFilter {
+        public String getName() {
+            return "failing";
+        }
+
+        public Kind getKind() {
+            return Kind.PER_PIXEL;
+        }
+
+        public int filterPixel(int rgb) {
+            throw new IllegalStateException("Failing filter");
+        }
+    }
+
+    /**
+     * Delays every read, and counts down when the reader closes the channel
+     */
+    private static class ThrottledChannel extends AsynchronousFileChannel {
+        private final AsynchronousFileChannel channel;
+        private final long delayMillis;
+        private final CountDownLatch closed;
+
+        ThrottledChannel(AsynchronousFileChannel channel, long delayMillis, CountDownLatch closed) {
+            this.channel = channel;
+            this.delayMillis = delayMillis;
+            this.closed = closed;
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment,
+                             CompletionHandler<Integer, ? super A> handler) {
+            CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS)
+                    .execute(() -> channel.read(dst, position, attachment, handler));
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            CompletableFuture<Integer> result = new CompletableFuture<>();
+            read(dst, position, null, new CompletionHandler<Integer, Void>() {
+                public void completed(Integer count, Void attachment) {
+                    result.complete(count);
+                }
+
+                public void failed(Throwable exception, Void attachment) {
+                    result.completeExceptionally(exception);
+                }
+            });
+            return result;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment,
+                             CompletionHandler<FileLock, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long position, A attachment,
+                              CompletionHandler<Integer, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            closed.countDown();
+        }
+    }
+
     public WritableImage loadImage(String filename)
             throws FileNotFoundException,
             FileFormatException {
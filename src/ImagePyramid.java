@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * A full size image plus copies of it at 1/2, 1/4, 1/8... the size (mipmap levels),
+ * so a viewer can draw from the level closest to the size on screen instead of
+ * rescaling the full image every time the window changes.
+ *
+ * Smaller levels are built in the background, one at a time; until a level is
+ * ready the viewer uses the closest larger one. After a modification, derive()
+ * updates the existing smaller levels with the same modification instead of
+ * shrinking the new full size image again. Levels updated that way can differ
+ * from a fresh rebuild by a shade or a row, which is fine for display.
+ *
+ * All building and closing runs on one background thread, in the order requested,
+ * so a pyramid is never closed while another is still being derived from it.
+ * Other threads reading the levels hold the pyramid's lock, checking isClosed()
+ * first, so the levels cannot be closed while they are read.
+ */
+public class ImagePyramid implements AutoCloseable {
+    //Stop shrinking once a level would be smaller than this on both sides
+    private static final int MIN_LEVEL_SIZE = 64;
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImagePyramid builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Raster> levels = new ArrayList<>();
+    private final int width, height;
+    private boolean closed = false;
+    private Runnable onLevelReady = null;
+
+    private ImagePyramid(Raster full) {
+        levels.add(full);
+        width = full.getWidth();
+        height = full.getHeight();
+    }
+
+    /**
+     * Start building a pyramid. The pyramid owns the raster and closes it with itself.
+     *
+     * @param full the full size image
+     * @return a pyramid whose smaller levels are being built in the background
+     */
+    public static ImagePyramid build(Raster full) {
+        ImagePyramid pyramid = new ImagePyramid(full);
+        builder.execute(pyramid::buildLevels);
+        return pyramid;
+    }
+
+    /**
+     * Start a pyramid for the result of applying op to this pyramid's image.
+     * Invert, grayscale and flip are applied to this pyramid's smaller levels, which is
+     * much cheaper than shrinking the new image; pixelate does not survive shrinking,
+     * so those levels are rebuilt.
+     *
+     * @param full the full size result; the new pyramid owns it
+     * @param op the modification that turned this image into full
+     * @return the new pyramid
+     */
+    public ImagePyramid derive(Raster full, LazyImage.Op op) {
+        ImagePyramid pyramid = new ImagePyramid(full);
+        if (op == LazyImage.Op.PIXELATE) {
+            builder.execute(pyramid::buildLevels);
+        } else {
+            builder.execute(() -> {
+                List<Raster> source = levelsSnapshot();
+                for (int i = 1; i < source.size(); i++)
+                    if (!pyramid.add(RasterOps.apply(op, source.get(i))))
+                        return;
+                //Carry on from the last level if this pyramid was not finished yet
+                pyramid.buildLevels();
+            });
+        }
+        return pyramid;
+    }
+
+    /**
+     * Modify a rectangle of the full size image in place, then bring the same area of
+     * the smaller levels up to date in the background. Only the rectangle is touched,
+     * so this costs time in proportion to its area, not to the image.
+     *
+     * @param op the modification
+     * @param x left column of the region in the full size image
+     * @param y top row of the region in the full size image
+     * @param width width of the region
+     * @param height height of the region
+     * @param onUpdated called on the builder thread once every level shows the change
+     * @throws IllegalArgumentException If the region is not inside the image
+     */
+    public void editRegion(LazyImage.Op op, int x, int y, int width, int height, Runnable onUpdated) {
+        RasterOps.apply(op, getLevel(0), x, y, width, height);
+        //Queued behind any level still being built, which may have read the old pixels
+        builder.execute(() -> {
+            int left = x, top = y, right = x + width, bottom = y + height;
+            for (int i = 1; ; i++) {
+                Raster above, level;
+                synchronized (this) {
+                    if (closed || i >= levels.size())
+                        break;
+                    above = levels.get(i - 1);
+                    level = levels.get(i);
+                }
+                left /= 2;
+                top /= 2;
+                right = Math.min((right + 1) / 2, level.getWidth());
+                bottom = Math.min((bottom + 1) / 2, level.getHeight());
+                if (right > left && bottom > top)
+                    RasterOps.downsample(above, level, left, top, right - left, bottom - top);
+            }
+            onUpdated.run();
+        });
+    }
+
+    /**
+     * @param level 0 for the full size image, 1 for half size, ...
+     * @return the raster for that level
+     * @throws IllegalStateException If the pyramid has been closed
+     */
+    public synchronized Raster getLevel(int level) {
+        if (closed)
+            throw new IllegalStateException("The image pyramid is closed");
+        return levels.get(level);
+    }
+
+    /**
+     * @return number of levels built so far: at least 1, or 0 once closed
+     */
+    public synchronized int getLevelCount() {
+        return levels.size();
+    }
+
+    /**
+     * @return width of the full size image, also after the pyramid is closed
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the full size image, also after the pyramid is closed
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true once close() has taken effect and the levels are gone
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Pick the smallest built level that still has at least one pixel per screen pixel
+     *
+     * @param sourcePixelsPerScreenPixel how many full size pixels each screen pixel covers
+     * @return a level number
+     */
+    public int levelFor(double sourcePixelsPerScreenPixel) {
+        int level = 0;
+        while (sourcePixelsPerScreenPixel >= 2) {
+            sourcePixelsPerScreenPixel /= 2;
+            level++;
+        }
+        return Math.min(level, getLevelCount() - 1);
+    }
+
+    /**
+     * @param onLevelReady called on the builder thread each time a level is added
+     */
+    public synchronized void setOnLevelReady(Runnable onLevelReady) {
+        this.onLevelReady = onLevelReady;
+    }
+
+    /**
+     * Close every level once any building already requested has finished
+     */
+    @Override
+    public void close() {
+        builder.execute(() -> {
+            synchronized (this) {
+                closed = true;
+                for (Raster level : levels)
+                    level.close();
+                levels.clear();
+            }
+        });
+    }
+
+    /**
+     * Keep halving the last level until it is small enough
+     */
+    private void buildLevels() {
+        while (true) {
+            Raster last;
+            synchronized (this) {
+                if (closed)
+                    return;
+                last = levels.get(levels.size() - 1);
+                if (last.getWidth() < 2 * MIN_LEVEL_SIZE && last.getHeight() < 2 * MIN_LEVEL_SIZE)
+                    return;
+            }
+            if (!add(RasterOps.downsample(last)))
+                return;
+        }
+    }
+
+    /**
+     * Add the next level and tell the viewer
+     *
+     * @return false if the pyramid was closed and the level was dropped
+     */
+    private boolean add(Raster level) {
+        Runnable callback;
+        synchronized (this) {
+            if (closed) {
+                level.close();
+                return false;
+            }
+            levels.add(level);
+            callback = onLevelReady;
+        }
+        if (callback != null)
+            callback.run();
+        return true;
+    }
+
+    private synchronized List<Raster> levelsSnapshot() {
+        return new ArrayList<>(levels);
+    }
+}
@@ -0,0 +1,263 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * A small HTTP server so other programs can use the modifications without the GUI.
+ *
+ * POST /transform?ops=flip,invert&amp;format=p6 with a PPM file as the body returns the
+ * transformed image. ops is applied left to right (flip, invert, grayscale, pixelate);
+ * format is p6 (default) or p3. PGM bodies are accepted too, and gray results come back
+ * as PGM (P5 or P2).
+ *
+ * Each request is handled on its own virtual thread when the JVM has them (Java 21+),
+ * otherwise on a cached thread pool. The pixel work itself always runs on a fixed pool
+ * with one thread per core, each image on a single thread, so many uploads at once
+ * queue up instead of oversubscribing the CPU.
+ * Only a few more bodies than there are workers are read into memory at once; other
+ * requests wait with their body still unread, and get 503 if they wait too long.
+ *
+ * Usage: java ImageService [port] [--workers N] [--tuning T]
+ *   --tuning T  profile, calibrate, off or a profile file; see AutoTuner
+ */
+public class ImageService {
+    //Largest request body accepted; bigger uploads get 413
+    private static final int MAX_BODY_BYTES = 256 << 20;
+    //Bodies read in beyond the ones being worked on
+    private static final int QUEUED_BODIES = 4;
+    //How long a request waits for its turn to read its body before getting 503
+    private static final long BODY_WAIT_SECONDS = 30;
+    //Each image is done on one worker thread; the parallelism is across requests
+    private static final AutoTuner.Setting REQUEST_SETTING = new AutoTuner.Setting(
+            AutoTuner.Setting.DEFAULT.getBandBytes(), 1);
+
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final ExecutorService transformPool;
+    private final Semaphore bodies;
+    private final int maxBodyBytes;
+
+    /**
+     * @param port Port to listen on, 0 to pick a free one
+     * @param workers Number of threads doing pixel work
+     * @throws IOException If the port cannot be opened
+     */
+    public ImageService(int port, int workers) throws IOException {
+        this(port, workers, MAX_BODY_BYTES);
+    }
+
+    /**
+     * @param maxBodyBytes Largest request body accepted
+     * @see #ImageService(int, int)
+     */
+    ImageService(int port, int workers, int maxBodyBytes) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        requestExecutor = newRequestExecutor();
+        transformPool = Executors.newFixedThreadPool(workers);
+        bodies = new Semaphore(workers + QUEUED_BODIES);
+        this.maxBodyBytes = maxBodyBytes;
+        server.setExecutor(requestExecutor);
+        server.createContext("/transform", this::handleTransform);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080, workers = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--workers"))
+                workers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--tuning"))
+                AutoTuner.configure(args[++i]);
+            else
+                port = Integer.parseInt(args[i]);
+        }
+        ImageService service = new ImageService(port, workers);
+        service.start();
+        System.out.printf("Listening on http://localhost:%d/transform with %d workers%n", service.getPort(), workers);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests and shut the thread pools down
+     */
+    public void stop() {
+        server.stop(0);
+        requestExecutor.shutdown();
+        transformPool.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleTransform(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendError(exchange, 405, "Use POST with a PPM body");
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            List<RasterFilter> ops;
+            try {
+                String names = query.getOrDefault("ops", "");
+                ops = BatchProcessor.parseOps(names.isEmpty() ? List.of() : Arrays.asList(names.split(",")));
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            boolean binary = !query.getOrDefault("format", "p6").equalsIgnoreCase("p3");
+            //Turn an upload that says it is too big away before reading any of it
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            try {
+                if (length != null && Long.parseLong(length.trim()) > maxBodyBytes) {
+                    sendError(exchange, 413, "Image is larger than " + maxBodyBytes + " bytes");
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Bad Content-Length: " + length);
+                return;
+            }
+
+            try {
+                if (!bodies.tryAcquire(BODY_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    sendError(exchange, 503, "Too many images in progress, try again later");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to read the body", e);
+            }
+            try {
+                transformBody(exchange, ops, binary);
+            } finally {
+                bodies.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the body, transform it and send the result, holding one of the body permits
+     */
+    private void transformBody(HttpExchange exchange, List<RasterFilter> ops, boolean binary) throws IOException {
+        //A chunked upload has no Content-Length, so its size is only known once read
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(maxBodyBytes + 1);
+        }
+        if (body.length > maxBodyBytes) {
+            sendError(exchange, 413, "Image is larger than " + maxBodyBytes + " bytes");
+            return;
+        }
+
+        Raster result;
+        try {
+            result = transform(body, ops);
+        } catch (PpmFormatException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } catch (IOException | RuntimeException e) {
+            //A plug-in filter that throws fails this request, not the connection
+            String reason = e.getMessage() != null ? e.getMessage() : e.toString();
+            System.err.println("Could not transform a request: " + reason);
+            sendError(exchange, 500, "Could not transform the image: " + reason);
+            return;
+        }
+        try (Raster image = result) {
+            sendImage(exchange, image, binary);
+        }
+    }
+
+    /**
+     * Parse and transform on the bounded worker pool, waiting for the result
+     */
+    private Raster transform(byte[] body, List<RasterFilter> ops) throws IOException {
+        Future<Raster> work = transformPool.submit(() -> {
+            try (Raster source = PpmReader.readStrict(ByteBuffer.wrap(body), "request body", PpmReader.Limits.DEFAULT)) {
+                return FilterScheduler.run(source, ops, REQUEST_SETTING);
+            }
+        });
+        try {
+            return work.get();
+        } catch (InterruptedException e) {
+            work.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transforming", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void sendImage(HttpExchange exchange, Raster image, boolean binary) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                image.isGray() ? "image/x-portable-graymap" : "image/x-portable-pixmap");
+        //P6 has a known length; P3 text is streamed chunked
+        exchange.sendResponseHeaders(200, binary ? PpmWriter.binarySize(image) : 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (binary)
+                PpmWriter.writeBinary(Channels.newChannel(out), image);
+            else
+                PpmWriter.writePlain(out, image);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null)
+            return query;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    /**
+     * A virtual thread per request on Java 21+, found by reflection so the code still
+     * compiles and runs on older JDKs, where a cached thread pool is used instead
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Load test for ImageService. Starts the server in this JVM, then has a number of
+ * clients post the same image over and over for a fixed time, and prints the median
+ * and 99th percentile latency and the requests per second. Run it with several client
+ * counts to see where throughput stops growing and latency starts to.
+ *
+ * Usage: java ImageServiceBenchmark image.ppm [clients] [seconds] [ops] [--workers N]
+ */
+public class ImageServiceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--workers"))
+                workers = Integer.parseInt(args[++i]);
+            else
+                positional.add(args[i]);
+        }
+        if (positional.isEmpty()) {
+            System.err.println("Usage: java ImageServiceBenchmark image.ppm [clients] [seconds] [ops] [--workers N]");
+            System.exit(2);
+        }
+        byte[] image = Files.readAllBytes(Paths.get(positional.get(0)));
+        int clients = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 16;
+        int seconds = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 10;
+        String ops = positional.size() > 3 ? positional.get(3) : "invert,flip";
+
+        ImageService service = new ImageService(0, workers);
+        service.start();
+        try {
+            URI uri = URI.create("http://localhost:" + service.getPort() + "/transform?ops=" + ops);
+            run(uri, image, 1, 2, false); //warm up
+            run(uri, image, clients, seconds, true);
+        } finally {
+            service.stop();
+        }
+    }
+
+    /**
+     * Post the image from each client in a loop until the time runs out
+     */
+    private static void run(URI uri, byte[] image, int clients, int seconds, boolean report) throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(image)).build();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            results.add(pool.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < end) {
+                    long sent = System.nanoTime();
+                    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                    if (response.statusCode() != 200)
+                        throw new IOException("Status " + response.statusCode() + ": " + new String(response.body()));
+                    if (count == latencies.length)
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = System.nanoTime() - sent;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int previous = all.length;
+            all = Arrays.copyOf(all, previous + latencies.length);
+            System.arraycopy(latencies, 0, all, previous, latencies.length);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        if (!report)
+            return;
+
+        Arrays.sort(all);
+        System.out.printf("%-8s %10s %10s %10s %10s%n", "clients", "requests", "req/s", "p50 ms", "p99 ms");
+        System.out.printf("%-8d %10d %10.1f %10.2f %10.2f%n", clients, all.length, all.length / elapsed,
+                percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+}
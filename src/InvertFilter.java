@@ -0,0 +1,29 @@
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Invert as a plug-in filter, subtracting each RGB component from 255.
+ * The reference PER_PIXEL filter.
+ */
+public class InvertFilter implements RasterFilter {
+
+    @Override
+    public String getName() {
+        return "invert";
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.PER_PIXEL;
+    }
+
+    @Override
+    public int getResultChannels(int sourceChannels) {
+        return sourceChannels;
+    }
+
+    @Override
+    public int filterPixel(int rgb) {
+        return ~rgb & 0xFFFFFF;
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * An image that remembers which modifications were applied to a source raster
+ * instead of computing them right away. Pixels are only produced by force(),
+ * after the list of operations has been simplified:
+ * <ul>
+ * <li>flip-flip and invert-invert cancel out, and pixelating twice is the same as once</li>
+ * <li>flips are moved past invert and grayscale (and past pixelate when the height is a
+ *     multiple of 5) so they can meet and cancel</li>
+ * </ul>
+ * The simplified list is then run by FilterScheduler with the installed filters, which
+ * does runs of invert, grayscale and flip in a single pass over the pixels.
+ *
+ * LazyImage objects never change; each operation returns a new handle.
+ * The source raster is not owned by the handle and must outlive it.
+ */
+public class LazyImage {
+    /**
+     * The built-in modifications, each done by the installed RasterFilter of the same name
+     */
+    public enum Op {
+        INVERT("invert"), GRAYIFY("grayscale"), PIXELATE("pixelate"), FLIP("flip");
+
+        private final String filterName;
+
+        Op(String filterName) {
+            this.filterName = filterName;
+        }
+
+        public String getFilterName() {
+            return filterName;
+        }
+
+        /**
+         * @return the installed filter that does this modification
+         */
+        public RasterFilter filter() {
+            return FilterScheduler.named(filterName);
+        }
+    }
+
+    private final Raster source;
+    private final List<Op> ops;
+
+    private LazyImage(Raster source, List<Op> ops) {
+        this.source = source;
+        this.ops = ops;
+    }
+
+    /**
+     * @param source Raster the operations will be applied to
+     * @return a handle with no operations applied yet
+     */
+    public static LazyImage of(Raster source) {
+        return new LazyImage(source, Collections.emptyList());
+    }
+
+    public LazyImage invert() {
+        return then(Op.INVERT);
+    }
+
+    public LazyImage grayify() {
+        return then(Op.GRAYIFY);
+    }
+
+    public LazyImage pixelate() {
+        return then(Op.PIXELATE);
+    }
+
+    public LazyImage flip() {
+        return then(Op.FLIP);
+    }
+
+    /**
+     * @param op Operation to record
+     * @return a new handle with op appended
+     */
+    public LazyImage then(Op op) {
+        List<Op> next = new ArrayList<>(ops);
+        next.add(op);
+        return new LazyImage(source, Collections.unmodifiableList(next));
+    }
+
+    public Raster getSource() {
+        return source;
+    }
+
+    /**
+     * @return the operations in the order they were recorded
+     */
+    public List<Op> getOps() {
+        return ops;
+    }
+
+    /**
+     * @return true if the recorded operations cancel out completely
+     */
+    public boolean isIdentity() {
+        return simplify().isEmpty();
+    }
+
+    /**
+     * Compute the pixels. Every call does the work again, so keep the result if it is needed twice.
+     *
+     * @return a new raster; the caller must close it
+     */
+    public Raster force() {
+        List<RasterFilter> filters = new ArrayList<>();
+        for (Op op : simplify())
+            filters.add(op.filter());
+        return FilterScheduler.run(source, filters);
+    }
+
+    /**
+     * Rewrite the recorded operations into the cheapest list that gives the same pixels
+     *
+     * @return simplified list of operations
+     */
+    List<Op> simplify() {
+        //Flips pass over per-pixel operations, and over pixelate when blocks line up with both edges
+        boolean flipCommutesWithPixelate = source.getHeight() % 5 == 0;
+        List<Op> moved = new ArrayList<>();
+        boolean pendingFlip = false;
+        for (Op op : ops) {
+            if (op == Op.FLIP) {
+                pendingFlip = !pendingFlip;
+            } else if (op == Op.PIXELATE && !flipCommutesWithPixelate && pendingFlip) {
+                moved.add(Op.FLIP);
+                moved.add(op);
+                pendingFlip = false;
+            } else {
+                moved.add(op);
+            }
+        }
+        if (pendingFlip)
+            moved.add(Op.FLIP);
+
+        //Cancel involutions and repeated pixelates now that they may be neighbours
+        List<Op> simplified = new ArrayList<>();
+        for (Op op : moved) {
+            Op last = simplified.isEmpty() ? null : simplified.get(simplified.size() - 1);
+            if (op == last && (op == Op.INVERT || op == Op.FLIP))
+                simplified.remove(simplified.size() - 1);
+            else if (op == last && op == Op.PIXELATE)
+                continue;
+            else
+                simplified.add(op);
+        }
+        return simplified;
+    }
+}
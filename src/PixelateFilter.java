@@ -0,0 +1,76 @@
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Pixelate as a plug-in filter, giving every pixel of each 5x5 block the color of the
+ * block's central pixel. The reference NEIGHBORHOOD filter: a pixel is at most 2 away
+ * from its centre, and tiles lined up with the blocks can be done separately, even in
+ * place, since each block only reads its own centre.
+ */
+public class PixelateFilter implements RasterFilter {
+    private static final int BLOCK = 5;
+
+    @Override
+    public String getName() {
+        return "pixelate";
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.NEIGHBORHOOD;
+    }
+
+    @Override
+    public int getRadius() {
+        return BLOCK / 2;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public int getTileAlignment() {
+        return BLOCK;
+    }
+
+    @Override
+    public int getResultChannels(int sourceChannels) {
+        return sourceChannels;
+    }
+
+    @Override
+    public void filterTile(Raster source, Raster result, int x, int y, int width, int height) {
+        ByteBuffer in = source.buffer(), out = result.buffer();
+        int channels = source.getChannels();
+        //Blocks whose centre is outside the image are left black
+        for (int top = y; top < y + height; top += BLOCK) {
+            for (int left = x; left < x + width; left += BLOCK) {
+                int cx = left + BLOCK / 2, cy = top + BLOCK / 2;
+                boolean black = cx > source.getWidth() - 2 || cy > source.getHeight() - 2;
+                byte red = 0, green = 0, blue = 0;
+                if (!black) {
+                    int centre = source.index(cx, cy);
+                    red = green = blue = in.get(centre);
+                    if (channels > 1) {
+                        green = in.get(centre + 1);
+                        blue = in.get(centre + 2);
+                    }
+                }
+                for (int y2 = top; y2 < Math.min(top + BLOCK, y + height); y2++) {
+                    for (int x2 = left; x2 < Math.min(left + BLOCK, x + width); x2++) {
+                        int i = result.index(x2, y2);
+                        out.put(i, red);
+                        if (channels > 1) {
+                            out.put(i + 1, green);
+                            out.put(i + 2, blue);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Thrown when a file is not a well formed PPM image, or is larger than allowed.
+ * Records the byte offset in the file where the problem was found.
+ */
+public class PpmFormatException extends IOException {
+    public static final long serialVersionUID = 42L;
+
+    private final String filename;
+    private final long offset;
+
+    /**
+     * @param filename Name of the file being read
+     * @param message What is wrong
+     * @param offset Byte position in the file where the problem was found
+     */
+    public PpmFormatException(String filename, String message, long offset) {
+        super(String.format("%s: %s at byte %d", filename, message, offset));
+        this.filename = filename;
+        this.offset = offset;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Reads PPM files (plain P3 and binary P6) into a Raster without going through JavaFX.
+ * PGM files (plain P2 and binary P5) are read the same way into a gray raster.
+ * Files holding several images one after another are read by PpmSequence.
+ * @link http://netpbm.sourceforge.net/doc/ppm.html
+ * @link http://netpbm.sourceforge.net/doc/pgm.html
+ */
+public class PpmReader {
+
+    /**
+     * Size limits for strict parsing, checked against the header before anything is allocated
+     */
+    public static class Limits {
+        public static final Limits DEFAULT = new Limits(32768, 32768, 100_000_000L);
+
+        private final int maxWidth;
+        private final int maxHeight;
+        private final long maxPixels;
+
+        /**
+         * @param maxWidth Widest image accepted
+         * @param maxHeight Tallest image accepted
+         * @param maxPixels Largest width * height accepted
+         */
+        public Limits(int maxWidth, int maxHeight, long maxPixels) {
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxPixels = maxPixels;
+        }
+    }
+
+    //Longest header (magic number, comments, size and max value) accepted in strict mode
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    /**
+     * Load the specified PPM image file into an off-heap raster.
+     * A P6 file with a max value of 255 is mapped directly instead of copied.
+     * Lenient like the original loader: a short or damaged P3 body leaves the rest of the image black.
+     *
+     * @param filename File name to be loaded
+     * @return raster holding the image; the caller must close it
+     * @throws java.io.FileNotFoundException If filename is not found
+     * @throws IOException If the file is not a readable PPM
+     */
+    public static Raster read(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            return read(new PpmTokenizer(in), filename, true, -1, null);
+        }
+    }
+
+    /**
+     * Load the specified PPM image file, rejecting anything that is not exactly a valid PPM.
+     * The header is checked against the limits and the file size before the raster is allocated,
+     * so a hostile header fails quickly without using memory.
+     *
+     * @param filename File name to be loaded
+     * @param limits Largest image accepted
+     * @return raster holding the image; the caller must close it
+     * @throws java.io.FileNotFoundException If filename is not found
+     * @throws PpmFormatException If the file is malformed, truncated, has extra data or is too large
+     * @throws IOException If the file cannot be read
+     */
+    public static Raster readStrict(String filename, Limits limits) throws IOException {
+        try (FileInputStream in = new FileInputStream(filename)) {
+            return read(new PpmTokenizer(in), filename, true, in.getChannel().size(), limits);
+        }
+    }
+
+    /**
+     * Like readStrict(String, Limits), but the pixels are always copied into an off-heap raster,
+     * never mapped. A mapping holds the file until the garbage collector unmaps it, so callers
+     * that move, delete or truncate the input while the raster is open must use this instead.
+     *
+     * @param filename File name to be loaded
+     * @param limits Largest image accepted
+     * @return raster holding a copy of the image; the caller must close it
+     * @see #readStrict(String, Limits)
+     */
+    public static Raster readStrictCopy(String filename, Limits limits) throws IOException {
+        try (FileInputStream in = new FileInputStream(filename)) {
+            return read(new PpmTokenizer(in), filename, false, in.getChannel().size(), limits);
+        }
+    }
+
+    /**
+     * Parse a PPM image that has already been read into memory, e.g. by ReadAhead.
+     * The buffer's position is advanced past the image.
+     *
+     * @param data Bytes of the whole file, from position to limit
+     * @param name Name of the file, used in error messages
+     * @return raster holding the image; the caller must close it
+     * @throws IOException If the bytes are not a readable PPM
+     */
+    public static Raster read(ByteBuffer data, String name) throws IOException {
+        return read(new PpmTokenizer(data), name, false, -1, null);
+    }
+
+    /**
+     * Strictly parse a PPM image that has already been read into memory, see readStrict(String, Limits)
+     *
+     * @param data Bytes of the whole file, from position to limit
+     * @param name Name of the file, used in error messages
+     * @param limits Largest image accepted
+     * @return raster holding the image; the caller must close it
+     * @throws PpmFormatException If the bytes are malformed, truncated, have extra data or are too large
+     */
+    public static Raster readStrict(ByteBuffer data, String name, Limits limits) throws IOException {
+        return read(new PpmTokenizer(data), name, false, data.remaining(), limits);
+    }
+
+    /**
+     * Strictly parse the next image of a stream holding several, for PpmSequence.
+     * Whitespace and comments between images are skipped.
+     *
+     * @param tokens tokenizer left just after the previous image
+     * @param name Name of the stream, used in error messages
+     * @param limits Largest image accepted
+     * @return raster holding the image, or null if the stream has no more images
+     * @throws PpmFormatException If the image is malformed, truncated or too large
+     */
+    static Raster readNext(PpmTokenizer tokens, String name, Limits limits) throws IOException {
+        tokens.setName(name);
+        if (tokens.skipToImage() < 0)
+            return null;
+        return read(tokens, name, false, -1, limits, false);
+    }
+
+    private static Raster read(PpmTokenizer tokens, String filename, boolean canMap, long fileSize,
+                               Limits limits) throws IOException {
+        return read(tokens, filename, canMap, fileSize, limits, true);
+    }
+
+    /**
+     * @param fileSize total bytes in the file, or -1 if unknown
+     * @param limits size limits, or null to read leniently
+     * @param wholeFile true if nothing may follow the image in strict mode
+     */
+    private static Raster read(PpmTokenizer tokens, String filename, boolean canMap, long fileSize,
+                               Limits limits, boolean wholeFile) throws IOException {
+        boolean strict = limits != null;
+        tokens.setName(filename);
+        if (strict)
+            tokens.setHeaderLimit(MAX_HEADER_BYTES);
+
+        long imageStart = tokens.getOffset();
+        String magic = tokens.nextMagic();
+        if (!magic.equals("P3") && !magic.equals("P6") && !magic.equals("P2") && !magic.equals("P5"))
+            throw new PpmFormatException(filename, "Not a PPM or PGM file (magic number " + magic + ")", imageStart);
+        if (strict && !Character.isWhitespace(tokens.peek()))
+            throw tokens.error("Expected whitespace after the magic number");
+
+        int width = tokens.nextInt();
+        long sizeOffset = tokens.getTokenStart();
+        int height = tokens.nextInt();
+        int colorSpace = tokens.nextInt();
+        if (width <= 0 || height <= 0)
+            throw new PpmFormatException(filename, "Bad image size " + width + "x" + height, sizeOffset);
+        if (colorSpace <= 0 || colorSpace > 255)
+            throw new PpmFormatException(filename, "Unsupported max value " + colorSpace, tokens.getTokenStart());
+        if (strict && (width > limits.maxWidth || height > limits.maxHeight
+                || (long) width * height > limits.maxPixels))
+            throw new PpmFormatException(filename, "Image size " + width + "x" + height + " is over the limit",
+                    sizeOffset);
+
+        boolean binary = magic.equals("P6") || magic.equals("P5");
+        int channels = magic.equals("P2") || magic.equals("P5") ? Raster.GRAY_CHANNELS : Raster.CHANNELS;
+        long samples = (long) width * height * channels;
+        if (binary) {
+            // Exactly one whitespace byte separates the header from binary pixel data
+            tokens.skipSingleWhitespace();
+        }
+        tokens.setHeaderLimit(-1);
+        if (strict && fileSize >= 0) {
+            //Each binary sample is one byte; each plain sample is at least a digit and a separator
+            long minimum = tokens.getOffset() + (binary ? samples : 2 * samples - 1);
+            if (fileSize < minimum)
+                throw new PpmFormatException(filename, "Truncated: expected at least " + minimum
+                        + " bytes for a " + width + "x" + height + " image but the file ends", fileSize);
+            if (binary && fileSize > minimum)
+                throw new PpmFormatException(filename, "Extra data after the image", minimum);
+        }
+
+        if (binary) {
+            if (colorSpace == 255 && canMap)
+                return Raster.map(filename, tokens.getOffset(), width, height, channels);
+            Raster raster = Raster.allocate(width, height, channels);
+            try {
+                if (colorSpace == 255) {
+                    long start = tokens.getOffset();
+                    tokens.readBytes(raster.buffer(), Raster.byteSize(width, height, channels));
+                    if (strict && tokens.getOffset() - start < samples)
+                        throw tokens.error("Truncated: image data ends early");
+                } else {
+                    readBinary(tokens, raster, colorSpace, strict);
+                }
+                if (strict && wholeFile)
+                    tokens.expectEnd();
+            } catch (IOException e) {
+                raster.close();
+                throw e;
+            }
+            return raster;
+        }
+
+        Raster raster = Raster.allocate(width, height, channels);
+        try {
+            if (strict) {
+                readPlainStrict(tokens, raster, colorSpace);
+                if (wholeFile)
+                    tokens.expectEnd();
+            } else
+                readPlain(tokens, raster, colorSpace);
+        } catch (IOException e) {
+            raster.close();
+            throw e;
+        }
+        return raster;
+    }
+
+    /**
+     * Read whitespace separated decimal samples, failing at the first bad, out of range or
+     * missing sample
+     */
+    private static void readPlainStrict(PpmTokenizer tokens, Raster raster, int colorSpace) throws IOException {
+        ByteBuffer pixels = raster.buffer();
+        int size = Raster.byteSize(raster.getWidth(), raster.getHeight(), raster.getChannels());
+        for (int i = 0; i < size; i++) {
+            int sample = tokens.nextInt();
+            if (sample > colorSpace)
+                throw new PpmFormatException(tokens.name, "Sample " + sample + " is over the max value "
+                        + colorSpace, tokens.getTokenStart());
+            pixels.put(i, (byte) scale(sample, colorSpace));
+        }
+    }
+
+    /**
+     * Read whitespace separated decimal samples, scaling them to 0-255.
+     * Like the original Scanner loader, stops quietly at the first missing or bad sample.
+     */
+    private static void readPlain(PpmTokenizer tokens, Raster raster, int colorSpace) {
+        ByteBuffer pixels = raster.buffer();
+        int size = Raster.byteSize(raster.getWidth(), raster.getHeight(), raster.getChannels());
+        try {
+            for (int i = 0; i < size; i++)
+                pixels.put(i, (byte) scale(tokens.nextInt(), colorSpace));
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Read one byte per sample for a P6 file whose max value is below 255
+     */
+    private static void readBinary(PpmTokenizer tokens, Raster raster, int colorSpace, boolean strict)
+            throws IOException {
+        ByteBuffer pixels = raster.buffer();
+        int size = Raster.byteSize(raster.getWidth(), raster.getHeight(), raster.getChannels());
+        for (int i = 0; i < size; i++) {
+            int sample = tokens.read();
+            if (sample < 0 && strict)
+                throw tokens.error("Truncated: image data ends early");
+            if (sample < 0)
+                break;
+            if (sample > colorSpace && strict)
+                throw new PpmFormatException(tokens.name, "Sample " + sample + " is over the max value "
+                        + colorSpace, tokens.getOffset() - 1);
+            pixels.put(i, (byte) scale(sample, colorSpace));
+        }
+    }
+
+    private static int scale(int sample, int colorSpace) {
+        if (colorSpace == 255)
+            return Math.min(sample, 255);
+        return Math.min(sample, colorSpace) * 255 / colorSpace;
+    }
+
+    /**
+     * Splits a PPM header (and P3 body) into tokens, skipping whitespace and # comments.
+     * Keeps track of how many bytes have been consumed so the binary data can be located.
+     * A file stream is read through the calling thread's scratch array instead of a buffer of its own.
+     */
+    static class PpmTokenizer {
+        private final InputStream in;
+        private final ByteBuffer buffer;
+        private String name = "";
+        private long offset = 0;
+        private long headerStart = 0, headerLimit = -1;
+        private long tokenStart = 0;
+        private int peeked = -2;
+
+        PpmTokenizer(InputStream in) {
+            this(in, RasterPool.scratchBytes(64 * 1024));
+        }
+
+        /**
+         * @param buffer array to read the stream through, for a tokenizer that is kept
+         *               between calls and so cannot share the thread's scratch array
+         */
+        PpmTokenizer(InputStream in, byte[] buffer) {
+            this.in = in;
+            this.buffer = ByteBuffer.wrap(buffer);
+            this.buffer.limit(0);
+        }
+
+        PpmTokenizer(ByteBuffer data) {
+            this.in = null;
+            this.buffer = data;
+        }
+
+        void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Limit the length of the header starting at the current offset
+         *
+         * @param maxBytes fail once this many bytes of the header have been read, or -1 for no limit
+         */
+        void setHeaderLimit(long maxBytes) {
+            headerStart = offset;
+            headerLimit = maxBytes;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return byte position of the first digit of the last number read
+         */
+        long getTokenStart() {
+            return tokenStart;
+        }
+
+        /**
+         * @return an exception for a problem with the byte just read (or end of file)
+         */
+        PpmFormatException error(String message) {
+            return new PpmFormatException(name, message, peeked == -1 ? offset : Math.max(offset - 1, 0));
+        }
+
+        String nextMagic() throws IOException {
+            long start = offset;
+            int p = read(), n = read();
+            if (p != 'P' || n < 0)
+                throw new PpmFormatException(name, "Not a PPM file (missing magic number)", start);
+            return "P" + (char) n;
+        }
+
+        int nextInt() throws IOException {
+            int c = skipWhitespace();
+            if (c < 0)
+                throw error("Truncated: unexpected end of file");
+            if (c < '0' || c > '9')
+                throw error("Expected a number but found '" + (char) c + "'");
+            tokenStart = offset - 1;
+            int value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > 0xFFFFFF)
+                    throw error("Number too large");
+                c = peek();
+                if (c >= '0' && c <= '9')
+                    read();
+            }
+            return value;
+        }
+
+        void skipSingleWhitespace() throws IOException {
+            int c = read();
+            if (!Character.isWhitespace(c))
+                throw error("Expected whitespace before the image data");
+        }
+
+        /**
+         * Fail unless only whitespace and comments are left
+         */
+        void expectEnd() throws IOException {
+            int c = skipWhitespace();
+            if (c >= 0)
+                throw error("Extra data after the image");
+        }
+
+        /**
+         * Skip whitespace and comments up to the start of the next image
+         *
+         * @return the first byte of the image, not consumed, or -1 at end of file
+         */
+        int skipToImage() throws IOException {
+            int c = peek();
+            while (c == '#' || Character.isWhitespace(c)) {
+                if (c == '#')
+                    while (c != '\n' && c != '\r' && c >= 0)
+                        c = read();
+                else
+                    read();
+                c = peek();
+            }
+            return c;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = read();
+            while (c == '#' || Character.isWhitespace(c)) {
+                if (c == '#')
+                    while (c != '\n' && c != '\r' && c >= 0)
+                        c = read();
+                c = read();
+            }
+            return c;
+        }
+
+        /**
+         * Copy the next count bytes unchanged into the start of out, stopping early at end of file
+         */
+        void readBytes(ByteBuffer out, int count) throws IOException {
+            int copied = 0;
+            while (copied < count && (buffer.hasRemaining() || refill())) {
+                int length = Math.min(buffer.remaining(), count - copied);
+                out.put(copied, buffer, buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                copied += length;
+            }
+            offset += copied;
+        }
+
+        private boolean refill() throws IOException {
+            if (in == null)
+                return false;
+            int length = in.read(buffer.array());
+            buffer.position(0).limit(Math.max(length, 0));
+            return length > 0;
+        }
+
+        int peek() throws IOException {
+            if (peeked == -2)
+                peeked = buffer.hasRemaining() || refill() ? buffer.get() & 0xFF : -1;
+            return peeked;
+        }
+
+        int read() throws IOException {
+            if (headerLimit >= 0 && offset - headerStart >= headerLimit)
+                throw new PpmFormatException(name, "Header is longer than " + headerLimit + " bytes", offset);
+            int c = peek();
+            if (c >= 0) {
+                peeked = -2;
+                offset++;
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Reads and writes streams of several PPM or PGM images one after another, as the
+ * Netpbm formats allow and as our camera rig writes frame sequences. PpmReader and
+ * loadImage only ever look at the first image of a file.
+ *
+ * Frames are read one at a time, so memory use does not grow with the length of the
+ * stream. transform() applies a filter chain to every frame: the calling thread reads
+ * frames and hands each one to a pool of threads, and writes the results back out in
+ * the order the frames came in. At most a few frames per thread are in memory at once;
+ * when the oldest frame is still being worked on, reading waits.
+ *
+ * Usage: java PpmSequence [options] input output op...
+ *   input, output  files, or - for standard input and output
+ *   op             any installed RasterFilter, as for BatchProcessor
+ *   --threads N    frames transformed at once (default: number of processors)
+ *   --binary       write P6 (P5) frames instead of P3 (P2)
+ */
+public class PpmSequence {
+    //Frames read ahead of the one being written, per thread
+    private static final int FRAMES_PER_THREAD = 2;
+    //Each frame is done on one thread; the parallelism is across frames
+    private static final AutoTuner.Setting FRAME_SETTING = new AutoTuner.Setting(
+            AutoTuner.Setting.DEFAULT.getBandBytes(), 1);
+
+    /**
+     * Reads the frames of a stream one at a time
+     */
+    public static class Reader implements AutoCloseable {
+        private final InputStream in;
+        private final String name;
+        private final PpmReader.Limits limits;
+        private final PpmReader.PpmTokenizer tokens;
+        private int frames = 0;
+
+        /**
+         * @param in stream to read, closed with the reader
+         * @param name name of the stream, used in error messages
+         * @param limits largest frame accepted
+         */
+        public Reader(InputStream in, String name, PpmReader.Limits limits) {
+            this.in = in;
+            this.name = name;
+            this.limits = limits;
+            tokens = new PpmReader.PpmTokenizer(in, new byte[64 * 1024]);
+        }
+
+        /**
+         * @return the next frame, which the caller must close, or null after the last one
+         * @throws PpmFormatException If a frame is malformed, truncated or too large;
+         *         the message gives its byte offset in the stream
+         */
+        public Raster next() throws IOException {
+            Raster frame = PpmReader.readNext(tokens, name, limits);
+            if (frame != null)
+                frames++;
+            return frame;
+        }
+
+        /**
+         * @return number of frames read so far
+         */
+        public int getFrameCount() {
+            return frames;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes frames one after another to a stream
+     */
+    public static class Writer implements AutoCloseable {
+        private final OutputStream out;
+        private final WritableByteChannel channel;
+        private final boolean binary;
+
+        /**
+         * @param out stream to write to, closed with the writer
+         * @param binary true for P6 (P5) frames, false for P3 (P2)
+         */
+        public Writer(OutputStream out, boolean binary) {
+            this.out = out;
+            this.binary = binary;
+            channel = Channels.newChannel(out);
+        }
+
+        public void write(Raster frame) throws IOException {
+            if (binary)
+                PpmWriter.writeBinary(channel, frame);
+            else
+                PpmWriter.writePlain(out, frame);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean binary = false;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--binary": binary = true; break;
+                default: positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2) {
+            System.err.println("Usage: java PpmSequence [--threads N] [--binary] input output op...");
+            System.exit(2);
+        }
+
+        List<RasterFilter> ops = BatchProcessor.parseOps(positional.subList(2, positional.size()));
+        String input = positional.get(0), output = positional.get(1);
+        long start = System.nanoTime();
+        int frames;
+        try (Reader reader = new Reader(input.equals("-") ? System.in : new FileInputStream(input), input,
+                PpmReader.Limits.DEFAULT);
+             Writer writer = new Writer(new BufferedOutputStream(output.equals("-") ? System.out
+                     : new FileOutputStream(output), 1 << 16), binary)) {
+            frames = transform(reader, writer, ops, threads);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d frames in %.2f s (%.1f frames/s)%n", frames, seconds, frames / seconds);
+    }
+
+    /**
+     * Apply the filters to every frame, several frames at once, writing the results in order
+     *
+     * @param threads number of frames transformed at once
+     * @return number of frames written
+     * @throws IOException If reading or writing fails; frames before the bad one are written
+     */
+    public static int transform(Reader reader, Writer writer, List<RasterFilter> ops, int threads)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "PpmSequence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //Frames in the order they were read; only the oldest is ever written
+        Deque<Future<Raster>> inFlight = new ArrayDeque<>();
+        int written = 0;
+        try {
+            while (true) {
+                Raster frame;
+                try {
+                    frame = reader.next();
+                } catch (IOException | RuntimeException e) {
+                    //The frames read before the bad one are still written, in order
+                    try {
+                        while (!inFlight.isEmpty()) {
+                            writeOldest(inFlight, writer);
+                            written++;
+                        }
+                    } catch (IOException | RuntimeException writeError) {
+                        e.addSuppressed(writeError);
+                    }
+                    throw e;
+                }
+                if (frame == null)
+                    break;
+                Raster source = frame;
+                inFlight.add(pool.submit(() -> {
+                    try (Raster image = source) {
+                        return FilterScheduler.run(image, ops, FRAME_SETTING);
+                    }
+                }));
+                if (inFlight.size() >= threads * FRAMES_PER_THREAD) {
+                    writeOldest(inFlight, writer);
+                    written++;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeOldest(inFlight, writer);
+                written++;
+            }
+        } finally {
+            //After a failure, let the frames still in flight finish and free them
+            for (Future<Raster> result : inFlight) {
+                try {
+                    result.get().close();
+                } catch (InterruptedException | ExecutionException e) {
+                    //Already failing
+                }
+            }
+            pool.shutdown();
+        }
+        return written;
+    }
+
+    /**
+     * Wait for the oldest frame in flight and write it
+     */
+    private static void writeOldest(Deque<Future<Raster>> inFlight, Writer writer) throws IOException {
+        Raster result;
+        try {
+            result = inFlight.peekFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transforming", e);
+        } catch (ExecutionException e) {
+            inFlight.removeFirst();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        inFlight.removeFirst();
+        try (Raster frame = result) {
+            writer.write(frame);
+        }
+    }
+}
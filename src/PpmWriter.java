@@ -0,0 +1,209 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Writes a Raster to a PPM file without going through JavaFX.
+ * A gray raster is written as a PGM file instead (P2 or P5), one sample per pixel.
+ * @link http://netpbm.sourceforge.net/doc/ppm.html
+ * @link http://netpbm.sourceforge.net/doc/pgm.html
+ */
+public class PpmWriter {
+    public static final String CREATOR = "# CREATOR: CS1122 ImageManipulator-inator";
+
+    /**
+     * Save a raster as a plain (P3) PPM file, one "r g b" line per pixel, or a gray raster
+     * as a plain (P2) PGM file, one sample per line.
+     * Text is built a row at a time in the calling thread's scratch array.
+     *
+     * @param filename Name of image file to be saved
+     * @param raster Pixels to be saved
+     * @throws java.io.FileNotFoundException If the file cannot be created
+     * @throws IOException If writing fails
+     */
+    public static void writePlain(String filename, Raster raster) throws IOException {
+        try (OutputStream out = new FileOutputStream(filename)) {
+            writePlain(out, raster);
+        }
+    }
+
+    /**
+     * Write a raster as a plain (P3) PPM or (P2) PGM to a stream, which is left open
+     *
+     * @param out Stream to write to
+     * @param raster Pixels to be written
+     * @throws IOException If writing fails
+     */
+    public static void writePlain(OutputStream out, Raster raster) throws IOException {
+        int width = raster.getWidth(), height = raster.getHeight();
+        ByteBuffer pixels = raster.buffer();
+
+        out.write(header(raster.isGray() ? "P2" : "P3", width, height));
+        //At most "255 255 255\n" per pixel
+        byte[] row = RasterPool.scratchBytes(width * 12);
+        for (int y = 0; y < height; y++) {
+            int length = 0;
+            for (int i = raster.index(0, y), end = raster.index(0, y + 1); i < end; i++) {
+                length = appendSample(row, length, pixels.get(i) & 0xFF);
+                row[length++] = (byte) ((end - i - 1) % raster.getChannels() == 0 ? '\n' : ' ');
+            }
+            out.write(row, 0, length);
+        }
+    }
+
+    /**
+     * Save a raster as a binary (P6) PPM file, or a gray raster as a binary (P5) PGM file.
+     * The header and the raster bytes go out in one gathering write straight from the
+     * pixel buffer, with no per-pixel conversion. If the raster is an unmodified view
+     * of a mapped file, the pixels are copied file-to-file with transferTo instead.
+     * Saving a mapped raster over its own file writes a new file and renames it into
+     * place, since truncating the old one would take the pixels away from the mapping.
+     *
+     * @param filename Name of image file to be saved
+     * @param raster Pixels to be saved
+     * @throws IOException If the file cannot be created or written
+     */
+    public static void writeBinary(String filename, Raster raster) throws IOException {
+        int width = raster.getWidth(), height = raster.getHeight();
+        ByteBuffer header = ByteBuffer.wrap(header(binaryMagic(raster), width, height));
+        ByteBuffer pixels = raster.buffer().duplicate();
+        pixels.rewind();
+
+        Path file = Paths.get(filename);
+        if (raster.getMappedFile() != null && Files.exists(file)
+                && Files.isSameFile(file, Paths.get(raster.getMappedFile()))) {
+            //A unique name, so two saves over the same file do not write into each other's copy
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+            try {
+                keepPermissions(file, temporary);
+                try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    writeFully(out, new ByteBuffer[] {header, pixels});
+                }
+                //The mapping keeps the old file's pixels readable after the rename
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return;
+        }
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (raster.getMappedFile() != null) {
+                writeFully(out, new ByteBuffer[] {header});
+                transferFully(raster.getMappedFile(), raster.getMappedOffset(), pixels.remaining(), out);
+            } else {
+                writeFully(out, new ByteBuffer[] {header, pixels});
+            }
+        }
+    }
+
+    /**
+     * Give a temporary file the permissions of the file it will replace, instead of the
+     * owner-only permissions createTempFile uses. Skipped on file systems without them.
+     */
+    private static void keepPermissions(Path original, Path temporary) throws IOException {
+        try {
+            Files.setPosixFilePermissions(temporary, Files.getPosixFilePermissions(original));
+        } catch (UnsupportedOperationException e) {
+            //Not a POSIX file system
+        }
+    }
+
+    /**
+     * Write a raster as a binary (P6) PPM or (P5) PGM to a channel, which is left open.
+     * Like the file version, the header and pixels go out in one gathering write
+     * if the channel supports it.
+     *
+     * @param out Channel to write to, e.g. Channels.newChannel(stream)
+     * @param raster Pixels to be written
+     * @throws IOException If writing fails
+     */
+    public static void writeBinary(WritableByteChannel out, Raster raster) throws IOException {
+        ByteBuffer pixels = raster.buffer().duplicate();
+        pixels.rewind();
+        writeFully(out, new ByteBuffer[] {ByteBuffer.wrap(header(binaryMagic(raster), raster.getWidth(),
+                raster.getHeight())), pixels});
+    }
+
+    /**
+     * @return number of bytes writeBinary produces for a raster
+     */
+    public static long binarySize(Raster raster) {
+        return header(binaryMagic(raster), raster.getWidth(), raster.getHeight()).length
+                + (long) Raster.byteSize(raster.getWidth(), raster.getHeight(), raster.getChannels());
+    }
+
+    private static String binaryMagic(Raster raster) {
+        return raster.isGray() ? "P5" : "P6";
+    }
+
+    /**
+     * Copy a region of one file to the end of a channel without passing the bytes through Java
+     *
+     * @param filename File to copy from
+     * @param offset First byte to copy
+     * @param count Number of bytes to copy
+     * @param out Channel to append to
+     * @throws IOException If the file is too short or the copy fails
+     */
+    static void transferFully(String filename, long offset, long count, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            while (count > 0) {
+                long copied = in.transferTo(offset, count, out);
+                if (copied <= 0)
+                    throw new IOException("Unexpected end of " + filename);
+                offset += copied;
+                count -= copied;
+            }
+        }
+    }
+
+    /**
+     * Write every buffer in order, with gathering writes when the channel allows
+     */
+    private static void writeFully(WritableByteChannel out, ByteBuffer[] buffers) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining())
+                ((GatheringByteChannel) out).write(buffers);
+            return;
+        }
+        for (ByteBuffer buffer : buffers)
+            while (buffer.hasRemaining())
+                out.write(buffer);
+    }
+
+    /**
+     * @return the PPM header for the given magic number and size, max value 255
+     */
+    static byte[] header(String magic, int width, int height) {
+        return String.format("%s\n%s\n%d %d\n%d\n", magic, CREATOR, width, height, 255)
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write a 0-255 sample as decimal digits
+     */
+    private static int appendSample(byte[] row, int length, int sample) {
+        if (sample >= 100)
+            row[length++] = (byte) ('0' + sample / 100);
+        if (sample >= 10)
+            row[length++] = (byte) ('0' + sample / 10 % 10);
+        row[length++] = (byte) ('0' + sample % 10);
+        return length;
+    }
+}
@@ -0,0 +1,261 @@
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseButton;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * An ImageView that shows an ImagePyramid. It draws from the level closest to the
+ * size the image takes up on screen, and only the visible part of that level is set
+ * as the viewport, so resizing, zooming and panning never rescale the full image.
+ *
+ * Scroll to zoom, drag with the right mouse button to pan. Dragging with the left
+ * button selects a rectangle of the image; a click without dragging clears it.
+ * The selection is drawn by getSelectionOverlay(), which the caller places over the view.
+ */
+public class PyramidView extends ImageView {
+    private static final double MAX_ZOOM = 64;
+
+    private ImagePyramid pyramid = null;
+    //Levels already converted for display, for the current pyramid only
+    private final Map<Integer, WritableImage> levelImages = new HashMap<>();
+    //Zoom factor and the centre of the visible area, in full size pixels
+    private double zoom = 1, centerX = 0, centerY = 0;
+    private double dragX, dragY;
+    //Selected rectangle in full size pixels, or null, and the outline showing it
+    private Rectangle2D selection = null;
+    private double selectX, selectY;
+    private final Rectangle selectionOverlay = new Rectangle();
+
+    public PyramidView() {
+        selectionOverlay.setFill(Color.TRANSPARENT);
+        selectionOverlay.setStroke(Color.YELLOW);
+        selectionOverlay.getStrokeDashArray().addAll(6.0, 4.0);
+        selectionOverlay.setMouseTransparent(true);
+        selectionOverlay.setManaged(false);
+        selectionOverlay.setVisible(false);
+
+        fitWidthProperty().addListener( observable -> refresh() );
+        fitHeightProperty().addListener( observable -> refresh() );
+
+        setOnScroll( event -> {
+            zoom = Math.max(1, Math.min(MAX_ZOOM, zoom * (event.getDeltaY() > 0 ? 1.25 : 0.8)));
+            refresh();
+        });
+        setOnMousePressed( event -> {
+            dragX = event.getX();
+            dragY = event.getY();
+            if( event.getButton() == MouseButton.PRIMARY && pyramid != null ) {
+                double[] start = toImageCoordinates(event.getX(), event.getY());
+                selectX = start[0];
+                selectY = start[1];
+                setSelection(null);
+            }
+        });
+        setOnMouseDragged( event -> {
+            if( pyramid == null )
+                return;
+            if( event.getButton() == MouseButton.PRIMARY ) {
+                double[] end = toImageCoordinates(event.getX(), event.getY());
+                double left = clamp(Math.min(selectX, end[0]), 0, fullWidth(pyramid));
+                double top = clamp(Math.min(selectY, end[1]), 0, fullHeight(pyramid));
+                double right = clamp(Math.max(selectX, end[0]), 0, fullWidth(pyramid));
+                double bottom = clamp(Math.max(selectY, end[1]), 0, fullHeight(pyramid));
+                //Whole pixels only, and nothing if the drag has not covered one yet
+                left = Math.floor(left);
+                top = Math.floor(top);
+                right = Math.ceil(right);
+                bottom = Math.ceil(bottom);
+                setSelection( right > left && bottom > top
+                        ? new Rectangle2D(left, top, right - left, bottom - top) : null );
+                return;
+            }
+            if( event.getButton() != MouseButton.SECONDARY )
+                return;
+            double sourcePerScreen = 1 / displayScale();
+            centerX -= (event.getX() - dragX) * sourcePerScreen;
+            centerY -= (event.getY() - dragY) * sourcePerScreen;
+            dragX = event.getX();
+            dragY = event.getY();
+            refresh();
+        });
+    }
+
+    /**
+     * Show a different pyramid. The zoom and pan are kept if the size is unchanged.
+     *
+     * @param next pyramid to show, or null to show nothing
+     */
+    public void setPyramid( ImagePyramid next ){
+        if( pyramid != null )
+            pyramid.setOnLevelReady(null);
+        if( next != null && (pyramid == null || fullWidth(pyramid) != fullWidth(next)
+                || fullHeight(pyramid) != fullHeight(next)) ) {
+            zoom = 1;
+            centerX = fullWidth(next) / 2.0;
+            centerY = fullHeight(next) / 2.0;
+            selection = null;
+        }
+        pyramid = next;
+        levelImages.clear();
+        if( next != null )
+            next.setOnLevelReady( () -> Platform.runLater(this::refresh) );
+        refresh();
+    }
+
+    public ImagePyramid getPyramid(){
+        return pyramid;
+    }
+
+    /**
+     * @return the selected rectangle in full size pixel coordinates, or null if nothing is selected
+     */
+    public Rectangle2D getSelection(){
+        return selection;
+    }
+
+    /**
+     * @param selection rectangle in full size pixel coordinates, or null to clear the selection
+     */
+    public void setSelection( Rectangle2D selection ){
+        this.selection = selection;
+        updateOverlay();
+    }
+
+    /**
+     * @return a node outlining the selection; add it to the same parent as this view
+     */
+    public Rectangle getSelectionOverlay(){
+        return selectionOverlay;
+    }
+
+    /**
+     * Redraw part of the image after the pyramid was edited in place.
+     * Only that part of each level already shown is copied again.
+     *
+     * @param region the changed rectangle, in full size pixels
+     */
+    public void regionChanged( Rectangle2D region ){
+        if( pyramid == null )
+            return;
+        //Closing runs on the builder thread; holding the lock keeps the levels open while copying
+        synchronized( pyramid ) {
+            if( pyramid.isClosed() )
+                return;
+            for( Map.Entry<Integer, WritableImage> entry : levelImages.entrySet() ) {
+                Raster level = pyramid.getLevel(entry.getKey());
+                double scale = (double)level.getWidth() / fullWidth(pyramid);
+                int left = (int)Math.floor(region.getMinX() * scale), top = (int)Math.floor(region.getMinY() * scale);
+                int right = Math.min((int)Math.ceil(region.getMaxX() * scale), level.getWidth());
+                int bottom = Math.min((int)Math.ceil(region.getMaxY() * scale), level.getHeight());
+                if( right > left && bottom > top )
+                    ImageManipulator.copyRegion(level, entry.getValue(), left, top, right - left, bottom - top);
+            }
+        }
+    }
+
+    /**
+     * Convert a point on the view to full size image coordinates
+     *
+     * @param viewX x relative to this view
+     * @param viewY y relative to this view
+     * @return the pixel position in the full size image (may be outside the image)
+     */
+    public double[] toImageCoordinates( double viewX, double viewY ){
+        double sourcePerScreen = 1 / displayScale();
+        return new double[] {
+            centerX - visibleWidth() / 2 + viewX * sourcePerScreen,
+            centerY - visibleHeight() / 2 + viewY * sourcePerScreen
+        };
+    }
+
+    /**
+     * Pick the level for the current size and zoom, and show the visible part of it
+     */
+    private void refresh(){
+        WritableImage image = null;
+        if( pyramid != null ) {
+            //As in regionChanged, the pyramid cannot be closed while a level is converted
+            synchronized( pyramid ) {
+                if( !pyramid.isClosed() ) {
+                    int level = pyramid.levelFor(1 / displayScale());
+                    image = levelImages.computeIfAbsent(level,
+                            key -> ImageManipulator.toImage(pyramid.getLevel(key)));
+                }
+            }
+        }
+        if( image == null ) {
+            setImage(null);
+            updateOverlay();
+            return;
+        }
+        double visibleWidth = visibleWidth(), visibleHeight = visibleHeight();
+        centerX = clamp(centerX, visibleWidth / 2, fullWidth(pyramid) - visibleWidth / 2);
+        centerY = clamp(centerY, visibleHeight / 2, fullHeight(pyramid) - visibleHeight / 2);
+
+        double levelScale = image.getWidth() / fullWidth(pyramid);
+
+        setImage(image);
+        setViewport( new Rectangle2D( (centerX - visibleWidth / 2) * levelScale,
+                (centerY - visibleHeight / 2) * levelScale,
+                visibleWidth * levelScale, visibleHeight * levelScale ) );
+        updateOverlay();
+    }
+
+    /**
+     * Move the selection outline to where the selection is shown at the current zoom and pan
+     */
+    private void updateOverlay(){
+        if( selection == null || pyramid == null || pyramid.getLevelCount() == 0 ) {
+            selectionOverlay.setVisible(false);
+            return;
+        }
+        double scale = displayScale();
+        double left = centerX - visibleWidth() / 2, top = centerY - visibleHeight() / 2;
+        selectionOverlay.setLayoutX( getBoundsInParent().getMinX() + (selection.getMinX() - left) * scale );
+        selectionOverlay.setLayoutY( getBoundsInParent().getMinY() + (selection.getMinY() - top) * scale );
+        selectionOverlay.setWidth( selection.getWidth() * scale );
+        selectionOverlay.setHeight( selection.getHeight() * scale );
+        selectionOverlay.setVisible(true);
+    }
+
+    /**
+     * @return screen pixels per full size image pixel
+     */
+    private double displayScale(){
+        double scale = Double.MAX_VALUE;
+        if( getFitWidth() > 0 )
+            scale = Math.min(scale, getFitWidth() / visibleWidth());
+        if( getFitHeight() > 0 )
+            scale = Math.min(scale, getFitHeight() / visibleHeight());
+        return scale == Double.MAX_VALUE ? zoom : scale;
+    }
+
+    private double visibleWidth(){
+        return fullWidth(pyramid) / zoom;
+    }
+
+    private double visibleHeight(){
+        return fullHeight(pyramid) / zoom;
+    }
+
+    private static int fullWidth( ImagePyramid pyramid ){
+        return pyramid.getWidth();
+    }
+
+    private static int fullHeight( ImagePyramid pyramid ){
+        return pyramid.getHeight();
+    }
+
+    private static double clamp( double value, double min, double max ){
+        return Math.max(min, Math.min(max, value));
+    }
+}
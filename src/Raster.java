@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * A block of RGB pixels stored as packed bytes (R, G, B per pixel, row by row).
+ * By default the bytes live outside the Java heap in a direct buffer, so large
+ * images do not count against the heap or get copied around by the garbage collector.
+ * A raster can also be a memory mapped view of the pixel data in a raw file.
+ * A gray raster stores a single byte per pixel instead, a third of the size; the
+ * transforms keep a gray raster gray, and grayscale turns a color raster into one.
+ *
+ * Close the raster when the image is no longer needed; any use after that
+ * throws an IllegalStateException.
+ */
+public class Raster implements AutoCloseable {
+    public static final int CHANNELS = 3;
+    public static final int GRAY_CHANNELS = 1;
+
+    private final int width;
+    private final int height;
+    private final int channels;
+    private ByteBuffer pixels;
+    private final boolean pooled;
+    //File and byte offset the pixels are mapped from, or null if not mapped
+    private String mappedFile = null;
+    private long mappedOffset = 0;
+
+    private Raster(int width, int height, int channels, ByteBuffer pixels, boolean pooled) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.pixels = pixels;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Allocate a black off-heap raster, reusing a pooled buffer when one is free
+     *
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return a new raster backed by a direct buffer
+     */
+    public static Raster allocate(int width, int height) {
+        return allocate(width, height, CHANNELS);
+    }
+
+    /**
+     * Allocate a black off-heap raster with one (gray) or three (RGB) bytes per pixel
+     *
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @param channels GRAY_CHANNELS or CHANNELS
+     * @return a new raster backed by a direct buffer
+     */
+    public static Raster allocate(int width, int height, int channels) {
+        Raster raster = allocateForOverwrite(width, height, channels);
+        ByteBuffer pixels = raster.pixels;
+        int size = pixels.limit(), i = 0;
+        for (; i + Long.BYTES <= size; i += Long.BYTES)
+            pixels.putLong(i, 0L);
+        for (; i < size; i++)
+            pixels.put(i, (byte) 0);
+        return raster;
+    }
+
+    /**
+     * Allocate an off-heap raster whose pixels are left as the pool found them.
+     * Only for callers that write every pixel before reading any.
+     *
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return a new raster backed by a pooled direct buffer
+     */
+    static Raster allocateForOverwrite(int width, int height) {
+        return allocateForOverwrite(width, height, CHANNELS);
+    }
+
+    /**
+     * @param channels GRAY_CHANNELS or CHANNELS
+     * @see #allocateForOverwrite(int, int)
+     */
+    static Raster allocateForOverwrite(int width, int height, int channels) {
+        return new Raster(width, height, channels, RasterPool.acquire(byteSize(width, height, channels)), true);
+    }
+
+    /**
+     * Allocate a black raster on the Java heap.
+     * Only used to compare against the off-heap path.
+     *
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return a new raster backed by a heap array
+     */
+    public static Raster allocateOnHeap(int width, int height) {
+        return allocateOnHeap(width, height, CHANNELS);
+    }
+
+    /**
+     * @param channels GRAY_CHANNELS or CHANNELS
+     * @see #allocateOnHeap(int, int)
+     */
+    public static Raster allocateOnHeap(int width, int height, int channels) {
+        return new Raster(width, height, channels, ByteBuffer.allocate(byteSize(width, height, channels)), false);
+    }
+
+    /**
+     * Allocate a black raster of the given size in the same kind of storage and with the
+     * same channels as another raster, so transforms of an on-heap raster stay on the heap
+     * and transforms of a gray raster stay gray
+     *
+     * @param like Raster whose storage kind and channels are copied
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return a new raster
+     */
+    static Raster allocateLike(Raster like, int width, int height) {
+        return like.isOffHeap() ? allocate(width, height, like.channels) : allocateOnHeap(width, height, like.channels);
+    }
+
+    /**
+     * Like allocateLike, but an off-heap result is not cleared first.
+     * Only for callers that write every pixel before reading any.
+     */
+    static Raster allocateLikeForOverwrite(Raster like, int width, int height) {
+        return allocateLikeForOverwrite(like, width, height, like.channels);
+    }
+
+    /**
+     * Like allocateLikeForOverwrite, with a different number of channels
+     */
+    static Raster allocateLikeForOverwrite(Raster like, int width, int height, int channels) {
+        return like.isOffHeap() ? allocateForOverwrite(width, height, channels)
+                                : allocateOnHeap(width, height, channels);
+    }
+
+    /**
+     * Map raw RGB bytes from a file directly as the pixel store.
+     * The mapping is read-only; the transforms never write to their source raster.
+     * Closing the raster does not unmap the file: the mapping lasts until the garbage
+     * collector frees it, and until then the file cannot be deleted or moved on Windows,
+     * and truncating it can crash the JVM. Copy instead (PpmReader.readStrictCopy) when
+     * the file will be moved or deleted while the program runs.
+     *
+     * @param filename File holding the pixel bytes
+     * @param offset Position of the first pixel byte in the file
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return a raster viewing the file's bytes
+     * @throws IOException If the file cannot be opened or is too short
+     */
+    public static Raster map(String filename, long offset, int width, int height) throws IOException {
+        return map(filename, offset, width, height, CHANNELS);
+    }
+
+    /**
+     * Map raw RGB or gray bytes from a file directly as the pixel store
+     *
+     * @param channels GRAY_CHANNELS or CHANNELS
+     * @see #map(String, long, int, int)
+     */
+    public static Raster map(String filename, long offset, int width, int height, int channels) throws IOException {
+        int size = byteSize(width, height, channels);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() < offset + size)
+                throw new IOException("File is too short for a " + width + "x" + height + " image: " + filename);
+            Raster raster = new Raster(width, height, channels, channel.map(FileChannel.MapMode.READ_ONLY, offset, size), false);
+            raster.mappedFile = filename;
+            raster.mappedOffset = offset;
+            return raster;
+        }
+    }
+
+    /**
+     * Number of bytes needed to hold an image of the given size
+     *
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @return width * height * CHANNELS
+     * @throws IllegalArgumentException If the dimensions are negative or too large
+     */
+    public static int byteSize(int width, int height) {
+        return byteSize(width, height, CHANNELS);
+    }
+
+    /**
+     * @param channels GRAY_CHANNELS or CHANNELS
+     * @return width * height * channels
+     * @throws IllegalArgumentException If the dimensions are negative or too large, or channels is not 1 or 3
+     */
+    public static int byteSize(int width, int height, int channels) {
+        if (channels != GRAY_CHANNELS && channels != CHANNELS)
+            throw new IllegalArgumentException("Rasters have 1 or 3 channels, not " + channels);
+        long size = (long) width * height * channels;
+        if (width < 0 || height < 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bad image dimensions: " + width + "x" + height);
+        return (int) size;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return bytes per pixel: GRAY_CHANNELS or CHANNELS
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return true if this raster holds one gray byte per pixel
+     */
+    public boolean isGray() {
+        return channels == GRAY_CHANNELS;
+    }
+
+    /**
+     * @return bytes in one row of pixels
+     */
+    int rowBytes() {
+        return width * channels;
+    }
+
+    /**
+     * @return true if the pixels are stored outside the Java heap
+     */
+    public boolean isOffHeap() {
+        return buffer().isDirect();
+    }
+
+    /**
+     * @return the file this raster is a read-only view of, or null if it is not mapped
+     */
+    public String getMappedFile() {
+        return mappedFile;
+    }
+
+    /**
+     * @return position of the first pixel byte in the mapped file
+     */
+    public long getMappedOffset() {
+        return mappedOffset;
+    }
+
+    /**
+     * Read one channel of one pixel
+     *
+     * @param x Column of the pixel
+     * @param y Row of the pixel
+     * @param channel 0 for red, 1 for green, 2 for blue; all three read the same byte of a gray raster
+     * @return the channel value, 0-255
+     */
+    public int get(int x, int y, int channel) {
+        return buffer().get(index(x, y) + (channels == GRAY_CHANNELS ? 0 : channel)) & 0xFF;
+    }
+
+    /**
+     * Write one channel of one pixel
+     *
+     * @param x Column of the pixel
+     * @param y Row of the pixel
+     * @param channel 0 for red, 1 for green, 2 for blue; all three write the same byte of a gray raster
+     * @param value the channel value, 0-255
+     */
+    public void set(int x, int y, int channel, int value) {
+        buffer().put(index(x, y) + (channels == GRAY_CHANNELS ? 0 : channel), (byte) value);
+    }
+
+    /**
+     * @return byte position of the pixel (x, y) in the buffer
+     */
+    int index(int x, int y) {
+        return (y * width + x) * channels;
+    }
+
+    /**
+     * The backing buffer. Always use absolute get/put on it, the position is shared.
+     *
+     * @return the pixel bytes
+     * @throws IllegalStateException If the raster has been closed
+     */
+    ByteBuffer buffer() {
+        if (pixels == null)
+            throw new IllegalStateException("Raster has been closed");
+        return pixels;
+    }
+
+    /**
+     * Release the pixel store. A pooled buffer goes back to the RasterPool for the
+     * next image; the raster cannot be used afterwards. Closing twice does nothing.
+     * A mapped file stays mapped until the garbage collector frees it, see map().
+     */
+    @Override
+    public void close() {
+        if (pooled && pixels != null)
+            RasterPool.release(pixels);
+        pixels = null;
+    }
+}
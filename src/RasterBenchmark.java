@@ -0,0 +1,121 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.function.UnaryOperator;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Compares garbage collection and heap use of the four transforms when the
+ * rasters live on the Java heap versus off-heap in pooled direct buffers.
+ * The source image is tiled to make a larger input. The alloc column is the heap
+ * allocated by the measuring thread per transform; with the pool warmed up the
+ * off-heap path should allocate next to nothing.
+ *
+ * Usage: java RasterBenchmark [image.ppm] [scale] [iterations]
+ */
+public class RasterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String filename = args.length > 0 ? args[0] : "baboon.ppm";
+        int scale = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        try (Raster source = PpmReader.read(filename);
+             Raster offHeap = tile(source, scale, true);
+             Raster onHeap = tile(source, scale, false)) {
+            System.out.printf("%s scaled x%d: %dx%d, %d MB per image%n", filename, scale,
+                    offHeap.getWidth(), offHeap.getHeight(),
+                    Raster.byteSize(offHeap.getWidth(), offHeap.getHeight()) >> 20);
+            System.out.printf("%-10s %-9s %8s %12s %8s %10s %12s %12s%n", "transform", "storage",
+                    "ms/op", "alloc B/op", "GCs", "GC ms", "peak heap MB", "direct MB");
+
+            run("invert", RasterOps::invert, onHeap, offHeap, iterations);
+            run("grayify", RasterOps::grayify, onHeap, offHeap, iterations);
+            run("pixelate", RasterOps::pixelate, onHeap, offHeap, iterations);
+            run("flip", RasterOps::flip, onHeap, offHeap, iterations);
+        }
+    }
+
+    private static void run(String name, UnaryOperator<Raster> transform, Raster onHeap, Raster offHeap,
+                            int iterations) {
+        measure(name, "on-heap", transform, onHeap, iterations);
+        measure(name, "off-heap", transform, offHeap, iterations);
+    }
+
+    private static void measure(String name, String storage, UnaryOperator<Raster> transform, Raster source,
+                                int iterations) {
+        //Warm up so the JIT has compiled the loops before measuring
+        for (int i = 0; i < 3; i++)
+            transform.apply(source).close();
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        long gcCount = gcCount(), gcTime = gcTime(), allocated = allocatedBytes();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            transform.apply(source).close();
+        double msPerOp = (System.nanoTime() - start) / 1e6 / iterations;
+        long allocPerOp = (allocatedBytes() - allocated) / iterations;
+
+        System.out.printf("%-10s %-9s %8.2f %12d %8d %10d %12d %12d%n", name, storage, msPerOp, allocPerOp,
+                gcCount() - gcCount, gcTime() - gcTime, peakHeap() >> 20, directMemory() >> 20);
+    }
+
+    /**
+     * Build a bigger raster by repeating the source scale x scale times
+     */
+    private static Raster tile(Raster source, int scale, boolean offHeap) {
+        int width = source.getWidth(), height = source.getHeight();
+        Raster result = offHeap ? Raster.allocate(width * scale, height * scale)
+                                : Raster.allocateOnHeap(width * scale, height * scale);
+        int rowBytes = width * Raster.CHANNELS;
+        for (int y = 0; y < result.getHeight(); y++)
+            for (int tx = 0; tx < scale; tx++)
+                result.buffer().put(result.index(tx * width, y), source.buffer(), source.index(0, y % height), rowBytes);
+        return result;
+    }
+
+    /**
+     * Heap bytes allocated so far by this thread, or 0 if the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+            if (pool.getName().equals("direct"))
+                return pool.getMemoryUsed();
+        return 0;
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Compares two rasters directly on their bytes, for regression tests that check
+ * thousands of results against golden copies.
+ *
+ * Rows are split into bands that are compared in parallel. Each row is first checked
+ * with ByteBuffer.mismatch, which the JVM compiles to wide vector compares, and only
+ * rows that differ are walked pixel by pixel. equal() stops as soon as any band finds
+ * a difference; compare() goes through everything and reports how different they are.
+ *
+ * A gray raster compares equal to a color raster whose pixels have the same red,
+ * green and blue.
+ *
+ * Usage: java RasterCompare first.ppm second.ppm [diff.pgm]
+ */
+public class RasterCompare {
+    //Rough number of bytes each parallel task compares
+    private static final int BAND_BYTES = 256 << 10;
+
+    /**
+     * How two same size images differ
+     */
+    public static class Result implements AutoCloseable {
+        private final long pixels;
+        private long mismatchedPixels = 0;
+        private int maxDelta = 0;
+        private long squaredError = 0;
+        //Channel values compared, for the mean squared error
+        private long samples = 0;
+        private Raster diffMask;
+
+        private Result(long pixels, Raster diffMask) {
+            this.pixels = pixels;
+            this.diffMask = diffMask;
+        }
+
+        public boolean isEqual() {
+            return mismatchedPixels == 0;
+        }
+
+        /**
+         * @return number of pixels where any channel differs
+         */
+        public long getMismatchedPixels() {
+            return mismatchedPixels;
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return largest difference of any channel of any pixel, 0-255
+         */
+        public int getMaxDelta() {
+            return maxDelta;
+        }
+
+        /**
+         * @return peak signal to noise ratio in dB, or positive infinity if the images are equal
+         */
+        public double getPsnr() {
+            if (squaredError == 0)
+                return Double.POSITIVE_INFINITY;
+            double meanSquaredError = (double) squaredError / samples;
+            return 10 * Math.log10(255.0 * 255.0 / meanSquaredError);
+        }
+
+        /**
+         * @return a gray raster, white where the images differ and black elsewhere,
+         *         or null if it was not asked for. Closed with this result.
+         */
+        public Raster getDiffMask() {
+            return diffMask;
+        }
+
+        @Override
+        public void close() {
+            if (diffMask != null)
+                diffMask.close();
+            diffMask = null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d pixels differ, max delta %d, PSNR %.2f dB", mismatchedPixels, pixels,
+                    maxDelta, getPsnr());
+        }
+
+        private void add(Result band) {
+            mismatchedPixels += band.mismatchedPixels;
+            maxDelta = Math.max(maxDelta, band.maxDelta);
+            squaredError += band.squaredError;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java RasterCompare first.ppm second.ppm [diff.pgm]");
+            System.exit(2);
+        }
+        try (Raster first = PpmReader.read(args[0]); Raster second = PpmReader.read(args[1])) {
+            if (!sameSize(first, second)) {
+                System.out.printf("Sizes differ: %dx%d and %dx%d%n", first.getWidth(), first.getHeight(),
+                        second.getWidth(), second.getHeight());
+                System.exit(1);
+            }
+            try (Result result = compare(first, second, args.length > 2)) {
+                System.out.println(result);
+                if (args.length > 2)
+                    PpmWriter.writeBinary(args[2], result.getDiffMask());
+                System.exit(result.isEqual() ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * @return true if both rasters have the same size and the same pixels
+     */
+    public static boolean equal(Raster first, Raster second) {
+        if (!sameSize(first, second))
+            return false;
+        int rows = bandRows(first);
+        //allMatch stops handing out bands once one of them has found a difference
+        return IntStream.range(0, bandCount(first, rows)).parallel().allMatch(band -> {
+            int top = band * rows, bottom = Math.min(top + rows, first.getHeight());
+            if (first.getChannels() == second.getChannels())
+                return mismatch(first, second, top, bottom) < 0;
+            for (int y = top; y < bottom; y++)
+                if (compareRow(first, second, y, null, null))
+                    return false;
+            return true;
+        });
+    }
+
+    /**
+     * Measure how much two rasters of the same size differ
+     *
+     * @param withDiffMask true to also build a mask of the differing pixels
+     * @throws IllegalArgumentException If the sizes differ
+     */
+    public static Result compare(Raster first, Raster second, boolean withDiffMask) {
+        if (!sameSize(first, second))
+            throw new IllegalArgumentException(String.format("Cannot compare a %dx%d image with a %dx%d image",
+                    first.getWidth(), first.getHeight(), second.getWidth(), second.getHeight()));
+        int width = first.getWidth(), height = first.getHeight();
+        Raster mask = withDiffMask ? Raster.allocate(width, height, Raster.GRAY_CHANNELS) : null;
+        int rows = bandRows(first);
+
+        Result total = new Result((long) width * height, mask);
+        List<Result> bands = IntStream.range(0, bandCount(first, rows)).parallel().mapToObj(band -> {
+            Result partial = new Result(0, null);
+            for (int y = band * rows; y < Math.min(band * rows + rows, height); y++)
+                compareRow(first, second, y, partial, mask);
+            return partial;
+        }).collect(Collectors.toList());
+        for (Result band : bands)
+            total.add(band);
+        //Equal pixels count too, with no error
+        total.samples = (long) width * height * Math.max(first.getChannels(), second.getChannels());
+        return total;
+    }
+
+    /**
+     * Compare one row, adding its differences to a partial result and marking the mask
+     *
+     * @param partial where to add the differences, or null to only check
+     * @param mask diff mask to mark, or null
+     * @return true if the row differs
+     */
+    private static boolean compareRow(Raster first, Raster second, int y, Result partial, Raster mask) {
+        if (first.getChannels() == second.getChannels() && mismatch(first, second, y, y + 1) < 0)
+            return false;
+        ByteBuffer a = first.buffer(), b = second.buffer();
+        int stepA = first.getChannels(), stepB = second.getChannels(), channels = Math.max(stepA, stepB);
+        int i = first.index(0, y), j = second.index(0, y);
+        boolean differs = false;
+
+        for (int x = 0; x < first.getWidth(); x++, i += stepA, j += stepB) {
+            int pixelDelta = 0;
+            for (int c = 0; c < channels; c++) {
+                int delta = Math.abs((a.get(i + (stepA == 1 ? 0 : c)) & 0xFF) - (b.get(j + (stepB == 1 ? 0 : c)) & 0xFF));
+                if (delta == 0)
+                    continue;
+                pixelDelta = Math.max(pixelDelta, delta);
+                if (partial != null)
+                    partial.squaredError += delta * delta;
+            }
+            if (pixelDelta == 0)
+                continue;
+            differs = true;
+            if (partial == null)
+                return true;
+            partial.mismatchedPixels++;
+            partial.maxDelta = Math.max(partial.maxDelta, pixelDelta);
+            if (mask != null)
+                mask.buffer().put(mask.index(x, y), (byte) 255);
+        }
+        return differs;
+    }
+
+    /**
+     * @return position of the first differing byte in rows top to bottom, or -1 if they are equal
+     */
+    private static int mismatch(Raster first, Raster second, int top, int bottom) {
+        int from = first.index(0, top), length = first.index(0, bottom) - from;
+        return first.buffer().slice(from, length).mismatch(second.buffer().slice(from, length));
+    }
+
+    private static boolean sameSize(Raster first, Raster second) {
+        return first.getWidth() == second.getWidth() && first.getHeight() == second.getHeight();
+    }
+
+    private static int bandRows(Raster raster) {
+        return Math.max(1, BAND_BYTES / Math.max(1, raster.rowBytes()));
+    }
+
+    private static int bandCount(Raster raster, int rows) {
+        return (raster.getHeight() + rows - 1) / rows;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * An image modification that can be plugged in without changing the program. Filters
+ * are found with java.util.ServiceLoader: a jar on the class path lists its filter
+ * classes in META-INF/services/RasterFilter, and each needs a public no-argument
+ * constructor.
+ *
+ * A filter says what kind of work it does instead of looping over the image itself,
+ * and FilterScheduler decides how to run it from that: which filters can share one
+ * pass over the pixels, whether a result can be written over its source, and how the
+ * image can be cut into tiles for several threads.
+ * <ul>
+ * <li>PER_PIXEL filters implement filterPixel(); a result pixel depends only on the
+ *     source pixel in the same place</li>
+ * <li>GEOMETRIC filters implement sourceColumn() and sourceRow(); a result pixel is a
+ *     copy of some source pixel. The size of the image does not change.</li>
+ * <li>NEIGHBORHOOD filters implement filterTile(); a result pixel depends on source
+ *     pixels at most getRadius() away from it</li>
+ * </ul>
+ *
+ * Filters must not keep state between calls, since tiles are filtered concurrently.
+ */
+public interface RasterFilter {
+    enum Kind { PER_PIXEL, GEOMETRIC, NEIGHBORHOOD }
+
+    /**
+     * @return the name used to ask for this filter, e.g. on the BatchProcessor command line
+     */
+    String getName();
+
+    Kind getKind();
+
+    /**
+     * @return for NEIGHBORHOOD filters, how far from a result pixel the source pixels it
+     *         depends on can be
+     */
+    default int getRadius() {
+        return 0;
+    }
+
+    /**
+     * @return true if the result can be written over the source, tile by tile: every
+     *         tile only reads source pixels inside itself, and reads each one before writing it
+     */
+    default boolean isInPlace() {
+        return getKind() == Kind.PER_PIXEL;
+    }
+
+    /**
+     * @return tiles must start at multiples of this many pixels, across and down, and
+     *         filtering a tile must give the same pixels as filtering the whole image there;
+     *         1 if any tile will do, 0 if the image can only be done in one piece
+     */
+    default int getTileAlignment() {
+        return 1;
+    }
+
+    /**
+     * By default only GEOMETRIC filters, which just move pixels, keep a gray raster gray;
+     * the others might add color, so their result is a color raster. A filter that never
+     * adds color, like invert, returns sourceChannels to keep gray images a third the size.
+     *
+     * @param sourceChannels Raster.GRAY_CHANNELS or Raster.CHANNELS
+     * @return channels of the result; a PER_PIXEL filter returning Raster.GRAY_CHANNELS
+     *         must give pixels with equal red, green and blue
+     */
+    default int getResultChannels(int sourceChannels) {
+        return getKind() == Kind.GEOMETRIC ? sourceChannels : Raster.CHANNELS;
+    }
+
+    /**
+     * PER_PIXEL: the new color of one pixel
+     *
+     * @param rgb color as 0xRRGGBB; a gray pixel has equal red, green and blue
+     * @return new color as 0xRRGGBB
+     */
+    default int filterPixel(int rgb) {
+        throw new UnsupportedOperationException(getName() + " is not a per-pixel filter");
+    }
+
+    /**
+     * GEOMETRIC: the column of the source pixel that result pixel (x, y) is copied from
+     */
+    default int sourceColumn(int x, int y, int width, int height) {
+        throw new UnsupportedOperationException(getName() + " is not a geometric filter");
+    }
+
+    /**
+     * GEOMETRIC: the row of the source pixel that result pixel (x, y) is copied from
+     */
+    default int sourceRow(int x, int y, int width, int height) {
+        throw new UnsupportedOperationException(getName() + " is not a geometric filter");
+    }
+
+    /**
+     * @return for GEOMETRIC filters, true if sourceColumn() is always x and sourceRow()
+     *         does not depend on x, so whole rows can be copied at once
+     */
+    default boolean movesWholeRows() {
+        return false;
+    }
+
+    /**
+     * NEIGHBORHOOD: compute the result pixels in one tile
+     *
+     * @param source raster to read; the same raster as result if isInPlace() allows it
+     * @param result raster to write, the same size as source
+     * @param x left column of the tile
+     * @param y top row of the tile
+     * @param width width of the tile in pixels
+     * @param height height of the tile in pixels
+     */
+    default void filterTile(Raster source, Raster result, int x, int y, int width, int height) {
+        throw new UnsupportedOperationException(getName() + " is not a neighborhood filter");
+    }
+}
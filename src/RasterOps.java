@@ -0,0 +1,228 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * The four image modifications (invert, grayscale, pixelate, flip) on rasters, plus
+ * the conversions and downsampling the viewer and writers need. The modifications are
+ * done by their installed RasterFilters through FilterScheduler. Each one reads the
+ * source raster and returns a new raster, the source is never modified. Gray rasters
+ * stay gray, and grayscale always returns a gray raster, one byte per pixel.
+ *
+ * Each also has a region version that changes a rectangle of a raster in place, in
+ * time proportional to the rectangle rather than the image. A region comes out the
+ * same as cutting the rectangle out, modifying it as a whole image and pasting it back.
+ */
+public class RasterOps {
+
+    /**
+     * Invert an image by subtracting each RGB component from 255
+     *
+     * @param source raster to be inverted, not modified
+     * @return a new inverted raster
+     */
+    public static Raster invert(Raster source) {
+        return apply(LazyImage.Op.INVERT, source);
+    }
+
+    /**
+     * Convert an image to grayscale using the following formula:
+     * intensity = 0.2989*red + 0.5870*green + 0.1140*blue
+     *
+     * @param source raster to be converted, not modified
+     * @return a new gray raster, one byte per pixel
+     */
+    public static Raster grayify(Raster source) {
+        return apply(LazyImage.Op.GRAYIFY, source);
+    }
+
+    /**
+     * Pixelate by dividing the image into 5x5 regions and giving every pixel in
+     * a region the color of its central pixel. Regions whose centre falls outside
+     * the image are left black.
+     *
+     * @param source raster to be pixelated, not modified
+     * @return a new pixelated raster
+     */
+    public static Raster pixelate(Raster source) {
+        return apply(LazyImage.Op.PIXELATE, source);
+    }
+
+    /**
+     * Flip the image vertically by copying whole rows in reverse order
+     *
+     * @param source raster to be flipped, not modified
+     * @return a new upside-down raster
+     */
+    public static Raster flip(Raster source) {
+        return apply(LazyImage.Op.FLIP, source);
+    }
+
+    /**
+     * Apply one operation by name, with its installed filter
+     *
+     * @param op operation to apply
+     * @param source raster to read, not modified
+     * @return a new raster
+     */
+    public static Raster apply(LazyImage.Op op, Raster source) {
+        return FilterScheduler.run(source, List.of(op.filter()));
+    }
+
+    /**
+     * Invert a rectangle of an image in place
+     *
+     * @param image raster to modify
+     * @param x left column of the region
+     * @param y top row of the region
+     * @param width width of the region in pixels
+     * @param height height of the region in pixels
+     * @throws IllegalArgumentException If the region is not inside the image
+     * @throws java.nio.ReadOnlyBufferException If the raster is mapped from a file
+     */
+    public static void invert(Raster image, int x, int y, int width, int height) {
+        apply(LazyImage.Op.INVERT, image, x, y, width, height);
+    }
+
+    /**
+     * Convert a rectangle of an image to grayscale in place. A color raster stays
+     * color, with equal red, green and blue in the rectangle.
+     *
+     * @throws IllegalArgumentException If the region is not inside the image
+     * @see #invert(Raster, int, int, int, int)
+     */
+    public static void grayify(Raster image, int x, int y, int width, int height) {
+        apply(LazyImage.Op.GRAYIFY, image, x, y, width, height);
+    }
+
+    /**
+     * Pixelate a rectangle of an image in place. The 5x5 blocks start at the corner of
+     * the region, and the strips along its right and bottom edges that do not hold a
+     * whole block centre turn black, as they do for a whole image.
+     *
+     * @throws IllegalArgumentException If the region is not inside the image
+     * @see #invert(Raster, int, int, int, int)
+     */
+    public static void pixelate(Raster image, int x, int y, int width, int height) {
+        apply(LazyImage.Op.PIXELATE, image, x, y, width, height);
+    }
+
+    /**
+     * Flip a rectangle of an image vertically in place
+     *
+     * @throws IllegalArgumentException If the region is not inside the image
+     * @see #invert(Raster, int, int, int, int)
+     */
+    public static void flip(Raster image, int x, int y, int width, int height) {
+        apply(LazyImage.Op.FLIP, image, x, y, width, height);
+    }
+
+    /**
+     * Apply one operation by name to a rectangle of an image, in place
+     */
+    public static void apply(LazyImage.Op op, Raster image, int x, int y, int width, int height) {
+        FilterScheduler.runRegion(op.filter(), image, x, y, width, height);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the rectangle is empty or not inside the image
+     */
+    static void checkRegion(Raster image, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0
+                || x > image.getWidth() - width || y > image.getHeight() - height)
+            throw new IllegalArgumentException(String.format("Region %dx%d at (%d, %d) is not inside a %dx%d image",
+                    width, height, x, y, image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Copy a gray raster into a new color raster with equal red, green and blue,
+     * for writing to formats that only hold color
+     *
+     * @param source raster to copy, not modified; a color raster is copied as it is
+     * @return a new color raster
+     */
+    public static Raster toRgb(Raster source) {
+        int width = source.getWidth(), height = source.getHeight();
+        Raster result = Raster.allocateLikeForOverwrite(source, width, height, Raster.CHANNELS);
+        ByteBuffer in = source.buffer(), out = result.buffer();
+        if (!source.isGray()) {
+            out.put(0, in, 0, Raster.byteSize(width, height));
+            return result;
+        }
+        for (int i = 0, o = 0; i < width * height; i++, o += Raster.CHANNELS) {
+            byte gray = in.get(i);
+            out.put(o, gray);
+            out.put(o + 1, gray);
+            out.put(o + 2, gray);
+        }
+        return result;
+    }
+
+    /**
+     * Copy a color raster whose pixels all have equal red, green and blue into a gray raster
+     *
+     * @param source raster to copy, not modified; a gray raster is copied as it is
+     * @return a new gray raster, or null if some pixel is not gray
+     */
+    public static Raster toGray(Raster source) {
+        int width = source.getWidth(), height = source.getHeight();
+        ByteBuffer in = source.buffer();
+        if (!source.isGray()) {
+            for (int i = 0; i < Raster.byteSize(width, height); i += Raster.CHANNELS)
+                if (in.get(i) != in.get(i + 1) || in.get(i) != in.get(i + 2))
+                    return null;
+        }
+        Raster result = Raster.allocateLikeForOverwrite(source, width, height, Raster.GRAY_CHANNELS);
+        ByteBuffer out = result.buffer();
+        for (int i = 0, o = 0; o < width * height; i += source.getChannels(), o++)
+            out.put(o, in.get(i));
+        return result;
+    }
+
+    /**
+     * Halve the size of an image by averaging each 2x2 block of pixels.
+     * An odd last row or column is dropped.
+     *
+     * @param source raster to shrink, not modified
+     * @return a new raster half as wide and half as high (at least 1x1)
+     */
+    public static Raster downsample(Raster source) {
+        int width = Math.max(source.getWidth() / 2, 1), height = Math.max(source.getHeight() / 2, 1);
+        Raster result = Raster.allocateLikeForOverwrite(source, width, height);
+        downsample(source, result, 0, 0, width, height);
+        return result;
+    }
+
+    /**
+     * Recompute a rectangle of a half size copy from its source, after the source
+     * has been changed in that area
+     *
+     * @param source the full size raster
+     * @param result a raster made from source by downsample()
+     * @param x left column of the rectangle in result
+     * @param y top row of the rectangle in result
+     * @param width width of the rectangle in result
+     * @param height height of the rectangle in result
+     */
+    static void downsample(Raster source, Raster result, int x, int y, int width, int height) {
+        ByteBuffer in = source.buffer(), out = result.buffer();
+        //A 1 pixel wide or high source reuses its only row or column
+        int channels = source.getChannels();
+        int right = source.getWidth() > 1 ? channels : 0;
+        int down = source.getHeight() > 1 ? source.rowBytes() : 0;
+
+        for (int row = y; row < y + height; row++) {
+            for (int column = x; column < x + width; column++) {
+                int i = source.index(Math.min(2 * column, source.getWidth() - 1), Math.min(2 * row, source.getHeight() - 1));
+                int o = result.index(column, row);
+                for (int c = 0; c < channels; c++) {
+                    int sum = (in.get(i + c) & 0xFF) + (in.get(i + right + c) & 0xFF)
+                            + (in.get(i + down + c) & 0xFF) + (in.get(i + down + right + c) & 0xFF);
+                    out.put(o + c, (byte) ((sum + 2) / 4));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Keeps released off-heap pixel buffers around so the next image of a similar size
+ * can reuse one instead of allocating a fresh multi-megabyte buffer.
+ * Buffers are grouped into size buckets; a bucket is the requested size rounded up
+ * to 1/8 of its power of two, so similar sizes share buffers with little waste.
+ *
+ * Also hands out per-thread scratch arrays for the row loops in loading and saving.
+ *
+ * The pool holds at most raster.pool.maxBytes bytes (system property, default 256 MB);
+ * setting it to 0 turns pooling off.
+ */
+public class RasterPool {
+    private static final long MAX_POOLED_BYTES = Long.getLong("raster.pool.maxBytes", 256L << 20);
+    private static final int MIN_BUCKET_STEP = 4096;
+
+    private static final Map<Integer, Queue<ByteBuffer>> buckets = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private static final ThreadLocal<byte[]> scratchBytes = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final ThreadLocal<int[]> scratchInts = ThreadLocal.withInitial(() -> new int[4096]);
+
+    /**
+     * Take a direct buffer that can hold at least size bytes.
+     * The buffer's contents are whatever the previous user left in it.
+     *
+     * @param size Number of bytes needed
+     * @return a direct buffer with position 0 and limit size
+     */
+    public static ByteBuffer acquire(int size) {
+        int bucket = bucketSize(size);
+        Queue<ByteBuffer> queue = buckets.get(bucket);
+        ByteBuffer buffer = queue == null ? null : queue.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(bucket);
+        else
+            pooledBytes.addAndGet(-buffer.capacity());
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer from acquire back to the pool. If the pool is full the buffer is
+     * dropped and left for the garbage collector.
+     *
+     * @param buffer Buffer that is no longer used by anyone
+     */
+    public static void release(ByteBuffer buffer) {
+        if (pooledBytes.addAndGet(buffer.capacity()) > MAX_POOLED_BYTES) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        buckets.computeIfAbsent(buffer.capacity(), size -> new ConcurrentLinkedQueue<>()).add(buffer);
+    }
+
+    /**
+     * @return number of bytes currently sitting unused in the pool
+     */
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Drop every pooled buffer
+     */
+    public static void clear() {
+        buckets.clear();
+        pooledBytes.set(0);
+    }
+
+    /**
+     * Round a size up to its bucket: a multiple of 1/8 of its highest power of two
+     */
+    static int bucketSize(int size) {
+        int step = Math.max(Integer.highestOneBit(Math.max(size, 1)) >> 3, MIN_BUCKET_STEP);
+        long rounded = ((long) size + step - 1) / step * step;
+        return rounded > Integer.MAX_VALUE - 8 ? size : (int) rounded;
+    }
+
+    /**
+     * A byte array owned by the calling thread, reused across calls.
+     * Only valid until the same thread asks for scratch bytes again.
+     *
+     * @param size Minimum length needed
+     * @return scratch array of at least size bytes
+     */
+    static byte[] scratchBytes(int size) {
+        byte[] scratch = scratchBytes.get();
+        if (scratch.length < size) {
+            scratch = new byte[size];
+            scratchBytes.set(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * An int array owned by the calling thread, reused across calls.
+     * Only valid until the same thread asks for scratch ints again.
+     *
+     * @param size Minimum length needed
+     * @return scratch array of at least size ints
+     */
+    static int[] scratchInts(int size) {
+        int[] scratch = scratchInts.get();
+        if (scratch.length < size) {
+            scratch = new int[size];
+            scratchInts.set(scratch);
+        }
+        return scratch;
+    }
+}
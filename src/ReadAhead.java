@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Reads a list of files ahead of the caller so disk (or network share) latency overlaps
+ * with processing. Up to depth files are read at once with AsynchronousFileChannel into
+ * buffers from the RasterPool, as long as the bytes held stay under the memory cap.
+ * A file larger than the cap is still read, but only when nothing else is held.
+ *
+ * Files are handed out in list order by next(); give each one back with done()
+ * so its buffer can be reused and the next read can start.
+ */
+public class ReadAhead implements AutoCloseable {
+
+    /**
+     * Opens a file for reading; tests use it to slow reads down
+     */
+    interface Opener {
+        AsynchronousFileChannel open(Path path) throws IOException;
+    }
+
+    /**
+     * The full contents of one input file
+     */
+    public static class Prefetched {
+        private final Path path;
+        private final ByteBuffer data;
+        private final long size;
+
+        private Prefetched(Path path, ByteBuffer data, long size) {
+            this.path = path;
+            this.data = data;
+            this.size = size;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the file's bytes, from position 0 to limit
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+    }
+
+    private final List<Path> files;
+    private final int depth;
+    private final long memoryCap;
+    private final Opener opener;
+    private final Deque<CompletableFuture<Prefetched>> pending = new ArrayDeque<>();
+    private int nextFile = 0;
+    private long heldBytes = 0;
+    private int held = 0;
+
+    /**
+     * @param files Files to read, in the order they will be handed out
+     * @param depth Maximum number of files read ahead of the caller, at least 1
+     * @param memoryCap Maximum bytes held in read-ahead buffers at once
+     */
+    public ReadAhead(List<Path> files, int depth, long memoryCap) {
+        this(files, depth, memoryCap, path -> AsynchronousFileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * @param opener Opens each file for reading
+     * @see #ReadAhead(List, int, long)
+     */
+    ReadAhead(List<Path> files, int depth, long memoryCap, Opener opener) {
+        if (depth < 1)
+            throw new IllegalArgumentException("Read-ahead depth must be at least 1");
+        this.files = files;
+        this.depth = depth;
+        this.memoryCap = memoryCap;
+        this.opener = opener;
+    }
+
+    /**
+     * @return true if next() has another file to hand out
+     */
+    public synchronized boolean hasNext() {
+        return !pending.isEmpty() || nextFile < files.size();
+    }
+
+    /**
+     * Wait for the next file to finish reading and hand it out
+     *
+     * @return the next file's contents; pass it to done() once parsed
+     * @throws IOException If the file could not be read
+     */
+    public Prefetched next() throws IOException {
+        CompletableFuture<Prefetched> next;
+        synchronized (this) {
+            startReads();
+            //The caller is still holding every earlier file; go over the cap rather than stall
+            if (pending.isEmpty() && nextFile < files.size())
+                startRead(files.get(nextFile));
+            next = pending.poll();
+            if (next == null)
+                throw new IllegalStateException("No more files");
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            synchronized (this) {
+                startReads();
+            }
+        }
+    }
+
+    /**
+     * Give a file's buffer back so it can be reused for the next read
+     *
+     * @param file a file from next() that is no longer needed
+     */
+    public synchronized void done(Prefetched file) {
+        RasterPool.release(file.data);
+        release(file.size);
+        startReads();
+    }
+
+    /**
+     * Wait for reads in progress and return their buffers to the pool
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<Prefetched>> reads;
+        synchronized (this) {
+            reads = new ArrayList<>(pending);
+            pending.clear();
+            nextFile = files.size();
+        }
+        //Joined outside the lock, as a failing read needs the lock to release its buffer
+        for (CompletableFuture<Prefetched> read : reads) {
+            try {
+                Prefetched file = read.join();
+                done(file);
+            } catch (RuntimeException ignored) { }
+        }
+    }
+
+    /**
+     * Start reading more files while under the depth and memory limits
+     */
+    private void startReads() {
+        while (pending.size() < depth && nextFile < files.size()) {
+            Path path = files.get(nextFile);
+            long size;
+            try {
+                size = Files.size(path);
+            } catch (IOException e) {
+                startRead(path);
+                continue;
+            }
+            if (held > 0 && heldBytes + size > memoryCap)
+                return;
+            startRead(path);
+        }
+    }
+
+    /**
+     * Start reading the file at nextFile, ignoring the limits
+     */
+    private void startRead(Path path) {
+        nextFile++;
+        long size;
+        try {
+            size = Files.size(path);
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + path);
+        } catch (IOException e) {
+            pending.add(CompletableFuture.failedFuture(e));
+            return;
+        }
+        held++;
+        heldBytes += size;
+        pending.add(readAsync(path, size));
+    }
+
+    private synchronized void release(long size) {
+        held--;
+        heldBytes -= size;
+    }
+
+    /**
+     * Read a whole file into a pooled buffer without blocking the calling thread
+     */
+    private CompletableFuture<Prefetched> readAsync(Path path, long size) {
+        CompletableFuture<Prefetched> result = new CompletableFuture<>();
+        ByteBuffer buffer = RasterPool.acquire((int) size);
+        AsynchronousFileChannel channel;
+        try {
+            channel = opener.open(path);
+        } catch (IOException e) {
+            fail(result, buffer, size, e);
+            return result;
+        }
+
+        channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if (count < 0 || !buffer.hasRemaining()) {
+                    closeQuietly(channel);
+                    buffer.flip();
+                    result.complete(new Prefetched(path, buffer, size));
+                } else {
+                    channel.read(buffer, buffer.position(), null, this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exception, Void attachment) {
+                closeQuietly(channel);
+                fail(result, buffer, size, exception);
+            }
+        });
+        return result;
+    }
+
+    private void fail(CompletableFuture<Prefetched> result, ByteBuffer buffer, long size, Throwable exception) {
+        RasterPool.release(buffer);
+        release(size);
+        result.completeExceptionally(exception instanceof IOException ? exception : new IOException(exception));
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) { }
+    }
+}
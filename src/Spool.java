@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * A spool directory shared by any number of worker processes, on one machine or on
+ * several machines mounting the same file system. Layout:
+ *
+ *   job.properties   the operations and output format for every job
+ *   pending/         images waiting to be processed
+ *   leased/          images being processed, renamed to name~workerId
+ *   done/            results, each with a name.done marker written after it naming
+ *                    the result, which is a .pgm file if the job's result is gray
+ *   failed/          images that could not be read or transformed, with a name.error file
+ *   workers/         throughput of each worker, one properties file per worker
+ *
+ * A worker claims a job by renaming it from pending/ to leased/. A rename is atomic,
+ * so when two workers race for the same file exactly one of them succeeds. While it
+ * works, the worker keeps touching the leased file; a lease whose modified time is
+ * older than the lease length belongs to a crashed worker and is renamed back to
+ * pending/ by whoever notices first. A worker that finds its lease gone abandons the
+ * job without publishing it. Lease times use the file system's clock, so hosts
+ * sharing a spool should have their clocks roughly in sync.
+ */
+public class Spool {
+    private static final char LEASE_SEPARATOR = '~';
+
+    private final Path root;
+    private final Path pending, leased, done, failed, workers;
+
+    /**
+     * A job claimed by a worker
+     */
+    public static class Lease {
+        private final String name;
+        private final Path file;
+
+        private Lease(String name, Path file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        /**
+         * @return the file name of the image, as it was in pending/
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the leased file, to read the image from
+         */
+        public Path getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Open a spool, creating its directories if needed
+     */
+    public Spool(Path root) throws IOException {
+        this.root = root;
+        pending = Files.createDirectories(root.resolve("pending"));
+        leased = Files.createDirectories(root.resolve("leased"));
+        done = Files.createDirectories(root.resolve("done"));
+        failed = Files.createDirectories(root.resolve("failed"));
+        workers = Files.createDirectories(root.resolve("workers"));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Copy an image into pending/. It is copied under a temporary name first and then
+     * renamed, so no worker ever sees a partly copied file.
+     */
+    public void submit(Path image) throws IOException {
+        String name = image.getFileName().toString();
+        Path temporary = pending.resolve("." + name + ".tmp");
+        Files.copy(image, temporary, StandardCopyOption.REPLACE_EXISTING);
+        moveAtomically(temporary, pending.resolve(name));
+    }
+
+    /**
+     * @return the images waiting in pending/, sorted by name
+     */
+    public List<String> pendingJobs() throws IOException {
+        return list(pending, "*.{ppm,pgm}");
+    }
+
+    /**
+     * @return number of leases currently held, live or expired
+     */
+    public int leaseCount() throws IOException {
+        return list(leased, "*").size();
+    }
+
+    /**
+     * Try to claim the next pending job
+     *
+     * @return the lease, or null if there was nothing left to claim
+     */
+    public Lease claim(String workerId) throws IOException {
+        for (String name : pendingJobs()) {
+            Path pendingFile = pending.resolve(name);
+            Path leasedFile = leased.resolve(name + LEASE_SEPARATOR + workerId);
+            try {
+                //A rename keeps the modified time, so the lease starts out fresh instead of
+                //looking expired to another worker's reclaimExpired() until it is touched
+                touch(pendingFile);
+                moveAtomically(pendingFile, leasedFile);
+            } catch (NoSuchFileException e) {
+                continue; //Another worker got there first
+            }
+            return new Lease(name, leasedFile);
+        }
+        return null;
+    }
+
+    /**
+     * Extend a lease by touching its file
+     *
+     * @return false if the lease was lost, because it expired and was reclaimed
+     */
+    public boolean renew(Lease lease) {
+        try {
+            touch(lease.getFile());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Put expired leases back in pending/
+     *
+     * @param leaseMillis how long a lease lasts without being renewed
+     * @return number of jobs reclaimed
+     */
+    public int reclaimExpired(long leaseMillis) throws IOException {
+        int reclaimed = 0;
+        long now = System.currentTimeMillis();
+        for (String leaseName : list(leased, "*")) {
+            Path file = leased.resolve(leaseName);
+            int separator = leaseName.lastIndexOf(LEASE_SEPARATOR);
+            if (separator < 0)
+                continue;
+            try {
+                if (now - Files.getLastModifiedTime(file).toMillis() < leaseMillis)
+                    continue;
+                moveAtomically(file, pending.resolve(leaseName.substring(0, separator)));
+                reclaimed++;
+            } catch (NoSuchFileException e) {
+                //Finished or reclaimed by someone else in the meantime
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return where a result with this file name goes; write it with complete()
+     */
+    public Path resultFor(String name) {
+        return done.resolve(name);
+    }
+
+    /**
+     * @return the result of a finished job, which is a .pgm file if a .ppm job came out gray
+     */
+    public Path completedResult(String name) throws IOException {
+        Properties marker = readProperties(done.resolve(name + ".done"));
+        return resultFor(marker.getProperty("result", name));
+    }
+
+    /**
+     * Publish a result written to a temporary file, write the completion marker and
+     * give the lease up. Renew the lease first and publish only if that succeeds; if the
+     * lease is lost between the two the result is still published, and the job is
+     * simply done twice with the same output.
+     *
+     * @param result temporary file holding the finished image, on the same file system
+     * @param resultName file name to publish the result as, in done/
+     * @param marker contents of the name.done marker; the result name is added to it
+     */
+    public void complete(Lease lease, Path result, String resultName, Properties marker) throws IOException {
+        moveAtomically(result, resultFor(resultName));
+        marker.setProperty("result", resultName);
+        writeProperties(done.resolve(lease.getName() + ".done"), marker);
+        Files.deleteIfExists(lease.getFile());
+    }
+
+    /**
+     * Move a job that cannot be processed to failed/, with the reason next to it
+     */
+    public void fail(Lease lease, String reason) throws IOException {
+        Files.write(failed.resolve(lease.getName() + ".error"), (reason + "\n").getBytes());
+        try {
+            moveAtomically(lease.getFile(), failed.resolve(lease.getName()));
+        } catch (NoSuchFileException e) {
+            //Reclaimed by someone else, who will fail it again
+        }
+    }
+
+    /**
+     * @return the names of the finished jobs, the ones that have a completion marker
+     */
+    public List<String> completedJobs() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String marker : list(done, "*.done"))
+            names.add(marker.substring(0, marker.length() - ".done".length()));
+        return names;
+    }
+
+    public List<String> failedJobs() throws IOException {
+        return list(failed, "*.{ppm,pgm}");
+    }
+
+    public Properties readJob() throws IOException {
+        return readProperties(root.resolve("job.properties"));
+    }
+
+    public void writeJob(Properties job) throws IOException {
+        writeProperties(root.resolve("job.properties"), job);
+    }
+
+    public void writeWorkerStats(String workerId, Properties stats) throws IOException {
+        writeProperties(workers.resolve(workerId + ".properties"), stats);
+    }
+
+    /**
+     * @return the latest stats written by each worker, sorted by worker id
+     */
+    public List<Properties> readWorkerStats() throws IOException {
+        List<Properties> stats = new ArrayList<>();
+        for (String name : list(workers, "*.properties"))
+            stats.add(readProperties(workers.resolve(name)));
+        return stats;
+    }
+
+    /**
+     * Write properties to a temporary file and rename it into place, so readers on
+     * other machines never see a half written file
+     */
+    static void writeProperties(Path file, Properties properties) throws IOException {
+        Path temporary = file.resolveSibling("." + file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            properties.store(out, null);
+        }
+        moveAtomically(temporary, file);
+    }
+
+    private static Properties readProperties(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static void touch(Path file) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Rename a file, replacing the target. Leases depend on this being a single rename,
+     * so a file system that cannot do that is an error rather than a silent copy.
+     */
+    private static void moveAtomically(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new IOException("The spool must be on a file system with atomic rename", e);
+        } catch (FileAlreadyExistsException e) {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the names of the files in a directory matching a glob, skipping temporary files
+     */
+    private static List<String> list(Path directory, String glob) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!name.startsWith("."))
+                    names.add(name);
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+}
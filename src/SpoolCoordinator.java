@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Sets up a Spool and reports on it. Workers are started separately with SpoolWorker,
+ * on this machine or any other that mounts the spool; "run" is a shortcut that starts
+ * several worker processes here and waits for them.
+ *
+ * Usage:
+ *   java SpoolCoordinator submit spoolDir inputDir [--p3] op...
+ *   java SpoolCoordinator run spoolDir workers [--lease SECONDS]
+ *   java SpoolCoordinator status spoolDir [--lease SECONDS]
+ */
+public class SpoolCoordinator {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: java SpoolCoordinator submit|run|status spoolDir ...");
+            System.exit(2);
+        }
+        Spool spool = new Spool(Paths.get(args[1]));
+        long leaseMillis = 30_000;
+        List<String> rest = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--lease"))
+                leaseMillis = Long.parseLong(args[++i]) * 1000;
+            else
+                rest.add(args[i]);
+        }
+
+        switch (args[0]) {
+            case "submit": {
+                boolean binary = !rest.remove("--p3");
+                int submitted = submit(spool, Paths.get(rest.get(0)), rest.subList(1, rest.size()), binary);
+                System.out.printf("Submitted %d images%n", submitted);
+                break;
+            }
+            case "run": {
+                int workers = rest.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(rest.get(0));
+                long start = System.nanoTime();
+                runLocalWorkers(spool, workers, leaseMillis);
+                System.out.printf("All workers finished in %.2f s%n", (System.nanoTime() - start) / 1e9);
+                printStatus(spool);
+                break;
+            }
+            case "status": {
+                int reclaimed = spool.reclaimExpired(leaseMillis);
+                if (reclaimed > 0)
+                    System.out.printf("Reclaimed %d expired leases%n", reclaimed);
+                printStatus(spool);
+                break;
+            }
+            default:
+                System.err.println("Unknown command: " + args[0]);
+                System.exit(2);
+        }
+    }
+
+    /**
+     * Write the job description and copy every image in a directory into the spool
+     *
+     * @return number of images submitted
+     */
+    static int submit(Spool spool, Path inputDir, List<String> ops, boolean binary) throws IOException {
+        //Fail here rather than in every worker
+        BatchProcessor.parseOps(ops);
+        Properties job = new Properties();
+        job.setProperty("ops", String.join(",", ops));
+        job.setProperty("format", binary ? "p6" : "p3");
+        spool.writeJob(job);
+
+        List<Path> images = BatchProcessor.listImages(inputDir);
+        for (Path image : images)
+            spool.submit(image);
+        return images.size();
+    }
+
+    /**
+     * Start worker processes on this machine with the same Java and class path, and
+     * wait for them all to drain the spool
+     */
+    static void runLocalWorkers(Spool spool, int workers, long leaseMillis) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "SpoolWorker", "--lease", Long.toString(leaseMillis / 1000),
+                    "--id", SpoolWorker.defaultWorkerId() + "-" + i, spool.getRoot().toString());
+            builder.inheritIO();
+            processes.add(builder.start());
+        }
+        for (Process process : processes)
+            process.waitFor();
+    }
+
+    /**
+     * Print queue sizes and the throughput each worker last reported
+     */
+    static void printStatus(Spool spool) throws IOException {
+        System.out.printf("pending %d, leased %d, done %d, failed %d%n", spool.pendingJobs().size(),
+                spool.leaseCount(), spool.completedJobs().size(), spool.failedJobs().size());
+        List<Properties> workers = spool.readWorkerStats();
+        if (workers.isEmpty())
+            return;
+        System.out.printf("%-32s %8s %8s %10s %10s %10s%n", "worker", "images", "failed", "seconds", "busy %",
+                "images/s");
+        double total = 0;
+        for (Properties stats : workers) {
+            double seconds = Double.parseDouble(stats.getProperty("seconds", "0"));
+            double busy = Double.parseDouble(stats.getProperty("busySeconds", "0"));
+            double rate = Double.parseDouble(stats.getProperty("imagesPerSecond", "0"));
+            total += rate;
+            System.out.printf("%-32s %8s %8s %10.2f %10.1f %10.2f%n", stats.getProperty("worker"),
+                    stats.getProperty("jobs"), stats.getProperty("failed"), seconds,
+                    seconds > 0 ? 100 * busy / seconds : 0, rate);
+        }
+        System.out.printf("%-32s %8s %8s %10s %10s %10.2f%n", "total", "", "", "", "", total);
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * One worker process for a Spool. Claims pending images one at a time, applies the
+ * operations from the spool's job.properties and publishes the result with a
+ * completion marker. Start as many as you like, on as many machines as share the
+ * spool directory. After each job the worker updates its throughput in workers/.
+ *
+ * When there is nothing to claim the worker reclaims expired leases; it exits once
+ * pending/ and leased/ are both empty, unless --forever is given.
+ *
+ * Usage: java SpoolWorker [--id ID] [--lease SECONDS] [--forever] [--tuning T] spoolDir
+ *   --tuning T  profile, calibrate, off or a profile file; see AutoTuner
+ */
+public class SpoolWorker {
+    //How long to wait before looking again when every job is leased by someone else
+    private static final long POLL_MILLIS = 200;
+
+    private final Spool spool;
+    private final String workerId;
+    private final long leaseMillis;
+    private final List<RasterFilter> ops;
+    private final boolean binary;
+
+    private final long startMillis = System.currentTimeMillis();
+    private int jobs = 0, failures = 0;
+    private long pixels = 0, busyNanos = 0;
+
+    /**
+     * @param leaseMillis how long a claimed job stays ours without a renewal
+     */
+    public SpoolWorker(Spool spool, String workerId, long leaseMillis) throws IOException {
+        this.spool = spool;
+        this.workerId = workerId;
+        this.leaseMillis = leaseMillis;
+        Properties job = spool.readJob();
+        String names = job.getProperty("ops", "");
+        ops = BatchProcessor.parseOps(names.isEmpty() ? List.of() : Arrays.asList(names.split(",")));
+        binary = !job.getProperty("format", "p6").equalsIgnoreCase("p3");
+    }
+
+    public static void main(String[] args) throws IOException {
+        String workerId = defaultWorkerId();
+        long leaseMillis = 30_000;
+        boolean forever = false;
+        String spoolDir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--id": workerId = args[++i]; break;
+                case "--lease": leaseMillis = Long.parseLong(args[++i]) * 1000; break;
+                case "--forever": forever = true; break;
+                case "--tuning": AutoTuner.configure(args[++i]); break;
+                default: spoolDir = args[i];
+            }
+        }
+        if (spoolDir == null) {
+            System.err.println("Usage: java SpoolWorker [--id ID] [--lease SECONDS] [--forever] [--tuning T] spoolDir");
+            System.exit(2);
+        }
+        SpoolWorker worker = new SpoolWorker(new Spool(Paths.get(spoolDir)), workerId, leaseMillis);
+        worker.run(forever);
+        System.out.println(worker.summary());
+    }
+
+    /**
+     * Process jobs until the spool is drained, or forever
+     */
+    public void run(boolean forever) throws IOException {
+        //Renews the lease while a job is being processed; daemon so a crash stops renewing
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Lease renewer " + workerId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (true) {
+                Spool.Lease lease = spool.claim(workerId);
+                if (lease == null) {
+                    if (spool.reclaimExpired(leaseMillis) > 0)
+                        continue;
+                    if (!forever && spool.leaseCount() == 0 && spool.pendingJobs().isEmpty())
+                        return;
+                    sleep(POLL_MILLIS);
+                    continue;
+                }
+                long renewEvery = Math.max(1, leaseMillis / 3);
+                AtomicBoolean lost = new AtomicBoolean(false);
+                ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(() -> {
+                    if (!spool.renew(lease))
+                        lost.set(true);
+                }, renewEvery, renewEvery, TimeUnit.MILLISECONDS);
+                try {
+                    process(lease, lost);
+                } finally {
+                    renewal.cancel(false);
+                }
+                spool.writeWorkerStats(workerId, stats());
+            }
+        } finally {
+            renewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Transform one claimed image into a temporary file and publish it
+     *
+     * @param lost set by the renewer once the lease could not be renewed
+     */
+    private void process(Spool.Lease lease, AtomicBoolean lost) throws IOException {
+        long start = System.nanoTime();
+        //Hidden, and ending in the job's name so a gray result gets the .pgm name like in BatchProcessor
+        String prefix = "." + workerId + ".";
+        Path temporary = spool.resultFor(prefix + lease.getName());
+        Path written;
+        //Copied rather than mapped, the leased file is moved or deleted when we are done
+        try (Raster image = PpmReader.readStrictCopy(lease.getFile().toString(), PpmReader.Limits.DEFAULT)) {
+            written = Paths.get(BatchProcessor.transformAndSave(image, ops, temporary.toString(), binary));
+            pixels += (long) image.getWidth() * image.getHeight();
+        } catch (IOException | RuntimeException e) {
+            //A bad image or a filter that throws fails this job only; if it escaped, the lease
+            //would expire and the job would take down every worker that claimed it in turn
+            Files.deleteIfExists(temporary);
+            Files.deleteIfExists(Paths.get(BatchProcessor.outputName(temporary.toString(), true)));
+            spool.fail(lease, e.getMessage() != null ? e.getMessage() : e.toString());
+            failures++;
+            return;
+        }
+        if (lost.get() || !spool.renew(lease)) {
+            //Reclaimed while we worked; whoever claims it next publishes the result
+            Files.deleteIfExists(written);
+            System.err.println(workerId + ": lost the lease on " + lease.getName() + ", abandoning it");
+            return;
+        }
+        Properties marker = new Properties();
+        marker.setProperty("worker", workerId);
+        marker.setProperty("completed", Long.toString(System.currentTimeMillis()));
+        marker.setProperty("millis", Long.toString((System.nanoTime() - start) / 1_000_000));
+        spool.complete(lease, written, written.getFileName().toString().substring(prefix.length()), marker);
+        jobs++;
+        busyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return this worker's throughput so far, as written to the spool
+     */
+    public Properties stats() {
+        double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000.0;
+        Properties stats = new Properties();
+        stats.setProperty("worker", workerId);
+        stats.setProperty("jobs", Integer.toString(jobs));
+        stats.setProperty("failed", Integer.toString(failures));
+        stats.setProperty("pixels", Long.toString(pixels));
+        stats.setProperty("seconds", String.format(Locale.ROOT, "%.3f", seconds));
+        stats.setProperty("busySeconds", String.format(Locale.ROOT, "%.3f", busyNanos / 1e9));
+        stats.setProperty("imagesPerSecond", String.format(Locale.ROOT, "%.2f", jobs / seconds));
+        stats.setProperty("updated", Long.toString(System.currentTimeMillis()));
+        return stats;
+    }
+
+    public String summary() {
+        Properties stats = stats();
+        return String.format("%s: %s images (%s failed) in %s s, %s images/s", workerId, stats.getProperty("jobs"),
+                stats.getProperty("failed"), stats.getProperty("seconds"), stats.getProperty("imagesPerSecond"));
+    }
+
+    /**
+     * @return host name and process id, unique across machines sharing a spool
+     */
+    static String defaultWorkerId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for jobs", e);
+        }
+    }
+}
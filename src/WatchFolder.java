@@ -0,0 +1,396 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Andrew Koman
+ *
+ * DESCRIPTION:
+ * Watches an input directory and processes every PPM or PGM file that appears in it,
+ * instead of polling from cron. A file is only picked up once its size and modified
+ * time have stopped changing for the settle time, so files still being copied in are
+ * left alone. Each one is loaded, transformed and saved like in BatchProcessor, then
+ * moved to processed/ in the input directory (or failed/, next to a .error file).
+ *
+ * Stable files wait in a bounded queue for the workers. When the queue is full the
+ * watcher stops taking new files until a worker frees a place, so a burst of files
+ * stays on disk rather than in memory. Queue depth and lag are reported with metrics(),
+ * printed every report interval and optionally written to a properties file:
+ *   queueDepth       files waiting for a worker
+ *   oldestQueuedMillis  how long the oldest waiting file has waited
+ *   lagMillis        from a file first being seen to its result being written, for the
+ *                    last file, with lagMillisMax and lagMillisMean over all files
+ *   blockedMillis    total time the watcher spent waiting for room in the queue
+ * A queue that keeps filling up and a growing lag mean more workers are needed.
+ *
+ * Usage: java WatchFolder [options] inputDir outputDir op...
+ *   op            any installed RasterFilter, as for BatchProcessor
+ *   --workers N   files processed at once (default: number of processors)
+ *   --queue N     stable files that can wait for a worker (default 16)
+ *   --settle MS   how long a file must stay unchanged (default 1000)
+ *   --binary      write P6 (P5) instead of P3 (P2)
+ *   --metrics F   also write the metrics to properties file F
+ *   --report S    seconds between metric reports (default 10)
+ *   --tuning T    profile, calibrate, off or a profile file; see AutoTuner
+ */
+public class WatchFolder implements AutoCloseable {
+    private static final PathMatcher IMAGES = FileSystems.getDefault().getPathMatcher("glob:*.{ppm,pgm}");
+
+    private final Path inputDir, outputDir, processedDir, failedDir;
+    private final List<RasterFilter> ops;
+    private final boolean binary;
+    private final long settleNanos;
+    private final BlockingQueue<Job> queue;
+    private final int workerCount;
+    private final WatchService watchService;
+    private final ExecutorService watcher, workers;
+    private volatile boolean closed = false;
+
+    //Files seen but not yet stable, and files handed to the queue but not finished
+    private final Map<Path, Candidate> candidates = new HashMap<>();
+    private final Set<Path> queued = new HashSet<>();
+
+    private final long startMillis = System.currentTimeMillis();
+    private int processed = 0, failures = 0, busy = 0;
+    private long lastLagNanos = 0, maxLagNanos = 0, totalLagNanos = 0, blockedNanos = 0;
+
+    /**
+     * A file that has appeared, with what it looked like when last checked
+     */
+    private static class Candidate {
+        private final long firstSeen;
+        private long lastChange, size = -1, modified = -1;
+
+        private Candidate(long now) {
+            firstSeen = now;
+            lastChange = now;
+        }
+    }
+
+    /**
+     * A stable file waiting for a worker
+     */
+    private static class Job {
+        private final Path file;
+        private final long firstSeen, queuedAt;
+
+        private Job(Path file, long firstSeen, long queuedAt) {
+            this.file = file;
+            this.firstSeen = firstSeen;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * Start watching. Files already in the input directory are processed too.
+     *
+     * @param workers number of files processed at once
+     * @param queueCapacity number of stable files that can wait for a worker
+     * @param settleMillis how long a file must stay unchanged before it is processed
+     */
+    public WatchFolder(Path inputDir, Path outputDir, List<RasterFilter> ops, boolean binary,
+                       int workers, int queueCapacity, long settleMillis) throws IOException {
+        this.inputDir = inputDir;
+        this.outputDir = Files.createDirectories(outputDir);
+        processedDir = Files.createDirectories(inputDir.resolve("processed"));
+        failedDir = Files.createDirectories(inputDir.resolve("failed"));
+        this.ops = ops;
+        this.binary = binary;
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workerCount = workers;
+
+        watchService = inputDir.getFileSystem().newWatchService();
+        inputDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WatchFolder watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "WatchFolder worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.execute(this::watch);
+        for (int i = 0; i < workers; i++)
+            this.workers.execute(this::work);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int workers = Runtime.getRuntime().availableProcessors(), queueCapacity = 16;
+        long settleMillis = 1000, reportMillis = 10_000;
+        boolean binary = false;
+        Path metricsFile = null;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers": workers = Integer.parseInt(args[++i]); break;
+                case "--queue": queueCapacity = Integer.parseInt(args[++i]); break;
+                case "--settle": settleMillis = Long.parseLong(args[++i]); break;
+                case "--binary": binary = true; break;
+                case "--metrics": metricsFile = Paths.get(args[++i]); break;
+                case "--report": reportMillis = Long.parseLong(args[++i]) * 1000; break;
+                case "--tuning": AutoTuner.configure(args[++i]); break;
+                default: positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2) {
+            System.err.println("Usage: java WatchFolder [--workers N] [--queue N] [--settle MS] [--binary] "
+                    + "[--metrics file] [--report SECONDS] [--tuning T] inputDir outputDir op...");
+            System.exit(2);
+        }
+
+        List<RasterFilter> ops = BatchProcessor.parseOps(positional.subList(2, positional.size()));
+        WatchFolder watcher = new WatchFolder(Paths.get(positional.get(0)), Paths.get(positional.get(1)), ops,
+                binary, workers, queueCapacity, settleMillis);
+        Runtime.getRuntime().addShutdownHook(new Thread(watcher::close));
+        System.out.printf("Watching %s with %d workers%n", positional.get(0), workers);
+        while (true) {
+            Thread.sleep(reportMillis);
+            Properties metrics = watcher.metrics();
+            System.out.println(summary(metrics));
+            if (metricsFile != null)
+                Spool.writeProperties(metricsFile, metrics);
+        }
+    }
+
+    /**
+     * Stop watching, and stop the workers once the files they are on are finished.
+     * Files still waiting in the queue stay in the input directory for next time.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            //Closing anyway
+        }
+        //The watcher may be waiting for room in the queue; the workers are left to finish
+        watcher.shutdownNow();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return queue depth, lag and throughput so far
+     */
+    public synchronized Properties metrics() {
+        long now = System.nanoTime();
+        Job oldest = queue.peek();
+        double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000.0;
+        Properties metrics = new Properties();
+        metrics.setProperty("queueDepth", Integer.toString(queue.size()));
+        metrics.setProperty("queueCapacity", Integer.toString(queue.size() + queue.remainingCapacity()));
+        metrics.setProperty("oldestQueuedMillis", Long.toString(oldest == null ? 0 : millis(now - oldest.queuedAt)));
+        metrics.setProperty("waiting", Integer.toString(candidates.size()));
+        metrics.setProperty("busyWorkers", Integer.toString(busy));
+        metrics.setProperty("workers", Integer.toString(workerCount));
+        metrics.setProperty("processed", Integer.toString(processed));
+        metrics.setProperty("failed", Integer.toString(failures));
+        metrics.setProperty("lagMillis", Long.toString(millis(lastLagNanos)));
+        metrics.setProperty("lagMillisMax", Long.toString(millis(maxLagNanos)));
+        metrics.setProperty("lagMillisMean", Long.toString(processed == 0 ? 0 : millis(totalLagNanos / processed)));
+        metrics.setProperty("blockedMillis", Long.toString(millis(blockedNanos)));
+        metrics.setProperty("imagesPerSecond", String.format(Locale.ROOT, "%.2f", processed / seconds));
+        metrics.setProperty("updated", Long.toString(System.currentTimeMillis()));
+        return metrics;
+    }
+
+    static String summary(Properties metrics) {
+        return String.format("queue %s/%s (oldest %s ms), %s/%s workers busy, %s done, %s failed, "
+                        + "lag %s ms (max %s, mean %s), blocked %s ms",
+                metrics.getProperty("queueDepth"), metrics.getProperty("queueCapacity"),
+                metrics.getProperty("oldestQueuedMillis"), metrics.getProperty("busyWorkers"),
+                metrics.getProperty("workers"), metrics.getProperty("processed"), metrics.getProperty("failed"),
+                metrics.getProperty("lagMillis"), metrics.getProperty("lagMillisMax"),
+                metrics.getProperty("lagMillisMean"), metrics.getProperty("blockedMillis"));
+    }
+
+    /**
+     * Watcher thread: note new and growing files, and queue the ones that have settled
+     */
+    private void watch() {
+        try {
+            rescan();
+            //Check often enough that a settled file waits at most a quarter of the settle time
+            long checkMillis = Math.max(10, TimeUnit.NANOSECONDS.toMillis(settleNanos) / 4);
+            while (true) {
+                WatchKey key = watchService.poll(checkMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            rescan(); //Events were dropped, maybe while the queue was full
+                        else
+                            seen(inputDir.resolve((Path) event.context()));
+                    }
+                    key.reset();
+                }
+                queueSettled();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //Closed
+        } catch (IOException e) {
+            System.err.println("Stopped watching " + inputDir + ": " + e.getMessage());
+        }
+    }
+
+    private void rescan() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDir)) {
+            for (Path file : stream)
+                seen(file);
+        }
+    }
+
+    private synchronized void seen(Path file) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || !IMAGES.matches(file.getFileName()) || queued.contains(file))
+            return;
+        candidates.computeIfAbsent(file, f -> new Candidate(System.nanoTime()));
+    }
+
+    /**
+     * Move every file that has not changed for the settle time to the queue, waiting
+     * for room if it is full
+     */
+    private void queueSettled() throws InterruptedException {
+        List<Job> settled = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, Candidate> entry = it.next();
+                Candidate candidate = entry.getValue();
+                long size, modified;
+                try {
+                    size = Files.size(entry.getKey());
+                    modified = Files.getLastModifiedTime(entry.getKey()).toMillis();
+                } catch (IOException e) {
+                    it.remove(); //Gone again, e.g. renamed away
+                    continue;
+                }
+                if (size != candidate.size || modified != candidate.modified) {
+                    candidate.size = size;
+                    candidate.modified = modified;
+                    candidate.lastChange = now;
+                } else if (now - candidate.lastChange >= settleNanos) {
+                    it.remove();
+                    queued.add(entry.getKey());
+                    settled.add(new Job(entry.getKey(), candidate.firstSeen, now));
+                }
+            }
+        }
+        for (Job job : settled) {
+            if (!queue.offer(job)) {
+                long start = System.nanoTime();
+                queue.put(job);
+                synchronized (this) {
+                    blockedNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    }
+
+    /**
+     * Worker thread: process queued files until closed
+     */
+    private void work() {
+        try {
+            while (!closed) {
+                Job job = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (job == null)
+                    continue;
+                synchronized (this) {
+                    busy++;
+                }
+                boolean ok = false;
+                try {
+                    ok = process(job.file);
+                } finally {
+                    long lag = System.nanoTime() - job.firstSeen;
+                    synchronized (this) {
+                        busy--;
+                        queued.remove(job.file);
+                        if (ok) {
+                            processed++;
+                            lastLagNanos = lag;
+                            maxLagNanos = Math.max(maxLagNanos, lag);
+                            totalLagNanos += lag;
+                        } else {
+                            failures++;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        }
+    }
+
+    /**
+     * Load, transform and save one file, then move it out of the input directory
+     *
+     * @return false if it could not be processed and was moved to failed/
+     */
+    private boolean process(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            //Copied rather than mapped, the input is moved out of the watched folder afterwards
+            try (Raster source = PpmReader.readStrictCopy(file.toString(), PpmReader.Limits.DEFAULT)) {
+                //Written under a hidden name and renamed, so readers of outputDir never see half a file
+                Path written = Paths.get(BatchProcessor.transformAndSave(source, ops,
+                        outputDir.resolve("." + name).toString(), binary));
+                Files.move(written, outputDir.resolve(written.getFileName().toString().substring(1)),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(file, processedDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            //A filter that throws must not take the worker down with it
+            String reason = e.getMessage() != null ? e.getMessage() : e.toString();
+            System.err.println("Could not process " + name + ": " + reason);
+            try {
+                Files.write(failedDir.resolve(name + ".error"), (reason + "\n").getBytes());
+                Files.move(file, failedDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException gone) {
+                //Removed while being processed
+            } catch (IOException moveError) {
+                System.err.println("Could not move " + name + " to " + failedDir + ": " + moveError.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}